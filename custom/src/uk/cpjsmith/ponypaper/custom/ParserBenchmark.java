@@ -0,0 +1,75 @@
+package uk.cpjsmith.ponypaper.custom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import uk.cpjsmith.ponypaper.PonyDefinition;
+
+/**
+ * Compares the time taken to read a pony definition through a DOM with the
+ * time taken by the streaming parser. To test large inputs, the actions of
+ * the given pony are repeated (under new names) as many times as requested.
+ */
+public class ParserBenchmark {
+    
+    private static final int RUNS = 5;
+    
+    private final byte[] data;
+    
+    /**
+     * Creates a benchmark input from a pony.
+     * 
+     * @param definition the pony to copy
+     * @param copies     how many times to repeat its actions
+     */
+    public ParserBenchmark(PonyDefinition definition, int copies) {
+        PonyDefinition large = new PonyDefinition();
+        large.startActions = definition.startActions;
+        large.actions = new PonyDefinition.Action[definition.actions.length * copies];
+        for (int i = 0; i < large.actions.length; i++) {
+            PonyDefinition.Action original = definition.actions[i % definition.actions.length];
+            PonyDefinition.Action copy = new PonyDefinition.Action();
+            copy.name = original.name + (i / definition.actions.length);
+            copy.specialType = original.specialType;
+            copy.images.putAll(original.images);
+            copy.timings.putAll(original.timings);
+            copy.nextActions.putAll(original.nextActions);
+            large.actions[i] = copy;
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter writer = new PrintWriter(out);
+        large.writeDefinition(writer);
+        writer.close();
+        data = out.toByteArray();
+    }
+    
+    /**
+     * Parses the input several times with each method, and prints the best
+     * time of each.
+     * 
+     * @throws Exception if the input cannot be parsed
+     */
+    public void run() throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        long bestDom = Long.MAX_VALUE;
+        long bestStreaming = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            DocumentBuilder docBuilder = dbf.newDocumentBuilder();
+            new PonyDefinition(docBuilder.parse(new ByteArrayInputStream(data)));
+            bestDom = Math.min(bestDom, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            PonyDefinition.parse(new ByteArrayInputStream(data));
+            bestStreaming = Math.min(bestStreaming, System.nanoTime() - start);
+        }
+        
+        System.out.println("Input size: " + data.length / 1024 + " KB");
+        System.out.println("DOM:        " + bestDom / 1000000 + " ms");
+        System.out.println("Streaming:  " + bestStreaming / 1000000 + " ms");
+    }
+    
+}
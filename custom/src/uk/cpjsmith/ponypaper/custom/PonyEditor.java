@@ -1,15 +1,18 @@
 package uk.cpjsmith.ponypaper.custom;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Base64;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 import uk.cpjsmith.ponypaper.PonyDefinition;
+import uk.cpjsmith.ponypaper.PonyPack;
 
 /**
  * Wraps a {@code PonyDefinition} with the operational functions needed to
@@ -64,25 +67,12 @@ public class PonyEditor {
      * @throws GenericException if the file cannot be opened or is invalid
      */
     public void load(File file) throws GenericException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder;
-        try {
-            docBuilder = dbf.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException("An internal error occurred, cannot load file", e);
-        }
-        
-        Document document;
-        try {
-            document = docBuilder.parse(file);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ponyDefinition = PonyDefinition.parse(in);
         } catch (IOException e) {
             throw new GenericException("Invalid File", "Failed to read " + file);
         } catch (SAXException e) {
             throw new GenericException("Invalid Pony", "Failed to load " + file + " due to XML errors.");
-        }
-        
-        try {
-            ponyDefinition = new PonyDefinition(document);
         } catch (PonyDefinition.InvalidPonyException e) {
             String[] messages = new String[e.errors.size() + 1];
             messages[0] = "Failed to load " + file + " due to the following errors:";
@@ -109,6 +99,58 @@ public class PonyEditor {
         }
     }
     
+    /**
+     * Compiles XML pony definitions into a single pony pack. Each pony is
+     * named after its file, without the {@code .xml} extension.
+     * 
+     * @param xmlFiles the definitions to compile; all must be valid
+     * @param packFile the file to write the pack to
+     * @throws GenericException if a definition cannot be loaded or is
+     *                          invalid, or the pack cannot be written
+     */
+    public static void compilePack(File[] xmlFiles, File packFile) throws GenericException {
+        PonyPackConverter converter = new PonyPackConverter();
+        for (File file : xmlFiles) {
+            PonyEditor editor = new PonyEditor();
+            editor.load(file);
+            editor.validate();
+            String name = file.getName();
+            if (name.endsWith(".xml")) name = name.substring(0, name.length() - 4);
+            converter.addPony(name, editor.ponyDefinition);
+        }
+        
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(packFile))) {
+            converter.toPack().write(out);
+        } catch (IOException e) {
+            throw new GenericException("File Error", "An error occurred writing " + packFile + ".");
+        }
+    }
+    
+    /**
+     * Extracts every pony in a pony pack as an XML definition, named after
+     * the pony.
+     * 
+     * @param packFile the pack to read
+     * @param dir      the directory to write the definitions to
+     * @throws GenericException if the pack cannot be read or a definition
+     *                          cannot be written
+     */
+    public static void decompilePack(File packFile, File dir) throws GenericException {
+        PonyPack pack;
+        try {
+            pack = PonyPack.read(packFile);
+        } catch (IOException e) {
+            throw new GenericException("Invalid File", "Failed to read " + packFile + ": " + e.getMessage());
+        }
+        
+        for (int i = 0; i < pack.ponies.length; i++) {
+            PonyEditor editor = new PonyEditor();
+            editor.ponyDefinition = PonyPackConverter.toDefinition(pack, i);
+            String name = pack.ponies[i].name.replace('/', '_').replace('\\', '_');
+            editor.save(new File(dir, name + ".xml"));
+        }
+    }
+    
     /**
      * Checks that the pony is currently valid. If this method raises an
      * exception, the pony will not be usable in PonyPaper; the user should be
@@ -127,6 +169,16 @@ public class PonyEditor {
         }
     }
     
+    /**
+     * Returns the definition of the current pony. Changes to it are changes
+     * to the pony being edited.
+     * 
+     * @return the definition
+     */
+    PonyDefinition getDefinition() {
+        return ponyDefinition;
+    }
+    
     /**
      * Returns the pony's start actions.
      * 
@@ -24,6 +24,43 @@ public class PonyEditorCLI {
             
             for (int i = 0; i < args.length; i++) {
                 switch (args[i]) {
+                    case "-compile":
+                    {
+                        checkArgument(args, i, 2);
+                        File packFile = new File(args[++i]);
+                        File[] xmlFiles = new File[args.length - i - 1];
+                        for (int j = 0; j < xmlFiles.length; j++) xmlFiles[j] = new File(args[++i]);
+                        PonyEditor.compilePack(xmlFiles, packFile);
+                        break;
+                    }
+                    case "-decompile":
+                    {
+                        checkArgument(args, i, 2);
+                        File packFile = new File(args[++i]);
+                        File dir = new File(args[++i]);
+                        PonyEditor.decompilePack(packFile, dir);
+                        break;
+                    }
+                        
+                    case "-benchmark":
+                    {
+                        checkArgument(args, i, 2);
+                        String benchPath = args[++i];
+                        int copies;
+                        try {
+                            copies = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException e) {
+                            throw new PonyEditor.GenericException("", "Invalid copy count: " + args[i]);
+                        }
+                        PonyEditor benchEditor = new PonyEditor();
+                        benchEditor.load(new File(benchPath));
+                        try {
+                            new ParserBenchmark(benchEditor.getDefinition(), copies).run();
+                        } catch (Exception e) {
+                            throw new PonyEditor.GenericException("", "Benchmark failed: " + e);
+                        }
+                        break;
+                    }
                     case "-action":
                     {
                         checkArgument(args, i);
@@ -110,6 +147,12 @@ public class PonyEditorCLI {
         System.out.println("    Set the current action's special type.");
         System.out.println("-sprite DIRECTION FILE");
         System.out.println("    Set the current action's sprite for the given direction.");
+        System.out.println("-compile PACK FILES...");
+        System.out.println("    Compile all the remaining arguments, as pony definitions, into a pony pack.");
+        System.out.println("-decompile PACK DIR");
+        System.out.println("    Write each pony in the given pony pack to DIR as a pony definition.");
+        System.out.println("-benchmark FILE COPIES");
+        System.out.println("    Time reading the given pony, with its actions repeated COPIES times.");
     }
     
 }
@@ -0,0 +1,74 @@
+package uk.cpjsmith.ponypaper.custom;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import uk.cpjsmith.ponypaper.PonyDefinition;
+import uk.cpjsmith.ponypaper.PonyPack;
+
+/**
+ * Converts between XML pony definitions and pony packs. The conversion is
+ * lossless for valid definitions: converting to a pack and back gives the
+ * same definition.
+ */
+public class PonyPackConverter extends PonyPack.Builder {
+    
+    private static final String[] DIRECTIONS = {"left", "right"};
+    private static final String[] NEXT_TYPES = {"waiting", "moving", "drag"};
+    
+    @Override
+    protected byte[] decode(String image) {
+        return Base64.getDecoder().decode(image);
+    }
+    
+    /**
+     * Recreates the definition of a pony in a pack.
+     * 
+     * @param pack  the pack
+     * @param index the index of the pony within the pack
+     * @return the definition
+     */
+    public static PonyDefinition toDefinition(PonyPack pack, int index) {
+        PonyPack.Pony pony = pack.ponies[index];
+        
+        PonyDefinition definition = new PonyDefinition();
+        definition.actions = new PonyDefinition.Action[pony.actions.length];
+        for (int i = 0; i < pony.actions.length; i++) {
+            PonyPack.Action source = pony.actions[i];
+            PonyDefinition.Action action = new PonyDefinition.Action();
+            action.name = source.name;
+            action.specialType = source.specialType;
+            for (int dir = 0; dir < 2; dir++) {
+                ByteBuffer blob = pack.getBlob(source.images[dir]);
+                byte[] image = new byte[blob.remaining()];
+                blob.get(image);
+                action.images.put(DIRECTIONS[dir], Base64.getEncoder().encodeToString(image));
+                action.timings.put(DIRECTIONS[dir], joinInts(source.timings[dir]));
+            }
+            for (int type = 0; type < 3; type++) {
+                action.nextActions.put(NEXT_TYPES[type], joinNames(pony, source.nextActions[type]));
+            }
+            definition.actions[i] = action;
+        }
+        definition.startActions = joinNames(pony, pony.startActions);
+        return definition;
+    }
+    
+    private static String joinInts(int[] values) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) result.append(',');
+            result.append(values[i]);
+        }
+        return result.toString();
+    }
+    
+    private static String joinNames(PonyPack.Pony pony, int[] indices) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0) result.append(',');
+            result.append(pony.actions[indices[i]].name);
+        }
+        return result.toString();
+    }
+    
+}
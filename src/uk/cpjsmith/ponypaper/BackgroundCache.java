@@ -0,0 +1,232 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import java.io.File;
+
+/**
+ * Holds the background image, pre-scaled and pixelated to cover the screen,
+ * so each frame usually needs only an unscaled blit of it, positioned by the
+ * launcher's scroll offsets. An image that would be much larger than the
+ * screen at that size, such as a panorama, is kept at its pixelated size
+ * instead and enlarged as it is drawn. The image is prepared on the {@link
+ * SpriteLoader} thread once per combination of source image, pixelation and
+ * surface size, and kept in the {@link SpriteDiskCache} so that restarts and
+ * rotations can reuse it. Except where noted, methods must be called on the
+ * render thread.
+ */
+public class BackgroundCache {
+    
+    /* The background is opaque, so it needs no alpha channel. */
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+    /* The largest area, in screens, of an image prepared at full size. */
+    private static final int MAX_FULL_SIZE_SCREENS = 2;
+    
+    /**
+     * A prepared image and the size to draw it at.
+     */
+    private static class Prepared {
+        
+        final Bitmap image;
+        final int width;
+        final int height;
+        
+        Prepared(Bitmap image, int width, int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+        
+    }
+    
+    private Bitmap image = null;
+    /* The size the image is drawn at; larger than it if it was kept at its
+       pixelated size or reduced. */
+    private int imageWidth = 0;
+    private int imageHeight = 0;
+    /* Set once reduce() has halved the image. */
+    private boolean reduced = false;
+    /* The cache name of the image shown or being prepared, or null. */
+    private String wanted = null;
+    /* Reused by draw() so that drawing allocates nothing. */
+    private final Rect dstRect = new Rect();
+    
+    /**
+     * Starts preparing a background image for the given surface size. The
+     * current image, if any, is kept until the new one is ready. Nothing is
+     * done if the same image is already shown or being prepared.
+     * 
+     * @param file       the source image file
+     * @param hash       the hash of the file's content, or {@code null} if
+     *                   unknown
+     * @param pixelation the size, in screen pixels, of each image pixel
+     * @param width      the width of the surface
+     * @param height     the height of the surface
+     * @param handler    the render thread's handler
+     * @param onLoaded   run on the render thread once the new image is shown
+     */
+    public void load(final File file, String hash, int pixelation, final int width, final int height,
+                     final Handler handler, final Runnable onLoaded) {
+        if (hash == null) hash = file.length() + "-" + file.lastModified();
+        final int blockSize = Math.max(1, pixelation);
+        final String name = SpriteDiskCache.backgroundName(hash, blockSize, width, height);
+        if (name.equals(wanted)) return;
+        wanted = name;
+        
+        SpriteLoader.submit(new Runnable() {
+            public void run() {
+                final Prepared result = prepare(file, name, blockSize, width, height);
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (!name.equals(wanted)) {
+                            // Superseded while it was being prepared.
+                            if (result != null) result.image.recycle();
+                            return;
+                        }
+                        if (result == null) {
+                            setImage(null, 0, 0);
+                        } else {
+                            setImage(result.image, result.width, result.height);
+                        }
+                        onLoaded.run();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Removes the background image, and cancels the preparation of any new
+     * one.
+     */
+    public void clear() {
+        wanted = null;
+        setImage(null, 0, 0);
+    }
+    
+    private void setImage(Bitmap newImage, int width, int height) {
+        if (image != null) image.recycle();
+        image = newImage;
+        imageWidth = width;
+        imageHeight = height;
+        reduced = false;
+    }
+    
+    /**
+     * Replaces the background image with one of half the width and height,
+     * drawn enlarged to the same size, to save memory. The full image is
+     * prepared again on the next call to {@link #load}.
+     */
+    public void reduce() {
+        wanted = null;
+        if (image == null || reduced) return;
+        
+        Bitmap smaller = Bitmap.createScaledBitmap(image, Math.max(1, image.getWidth() / 2),
+                                                   Math.max(1, image.getHeight() / 2), true);
+        if (smaller == image) return;
+        image.recycle();
+        image = smaller;
+        reduced = true;
+    }
+    
+    /**
+     * Makes the pixelated image covering the screen, reading it from the disk
+     * cache if it has been made before. Called on the loader thread.
+     * 
+     * @return the image, or {@code null} if it could not be decoded
+     */
+    private static Prepared prepare(File file, String name, int blockSize, int width, int height) {
+        long start = System.nanoTime();
+        String path = file.toString();
+        BitmapFactory.Options bfo = new BitmapFactory.Options();
+        bfo.inScaled = false;
+        bfo.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bfo);
+        int srcW = bfo.outWidth;
+        int srcH = bfo.outHeight;
+        if (srcW <= 0 || srcH <= 0) return null;
+        
+        // The size which covers the surface, and that size in image pixels,
+        // rounded up so that the blocks still cover it.
+        float scale = Math.max((float)height / (float)srcH, (float)width / (float)srcW);
+        int coverW = Math.max(width, Math.round(srcW * scale));
+        int coverH = Math.max(height, Math.round(srcH * scale));
+        int smallW = (coverW + blockSize - 1) / blockSize;
+        int smallH = (coverH + blockSize - 1) / blockSize;
+        int fullW = smallW * blockSize;
+        int fullH = smallH * blockSize;
+        boolean fullSize = (long)fullW * fullH <= (long)MAX_FULL_SIZE_SCREENS * width * height;
+        
+        SpriteDiskCache diskCache = SpriteDiskCache.getInstance();
+        Bitmap cached = diskCache.get(name, CONFIG);
+        if (cached != null) return new Prepared(cached, fullW, fullH);
+        
+        // Subsample while decoding as far as possible without going below
+        // the pixelated size. This stays at 1 for images smaller than that.
+        int sampleSize = 1;
+        while (srcW / (sampleSize * 2) >= smallW && srcH / (sampleSize * 2) >= smallH) {
+            sampleSize *= 2;
+        }
+        bfo.inJustDecodeBounds = false;
+        bfo.inSampleSize = sampleSize;
+        bfo.inPreferredConfig = CONFIG;
+        Bitmap decoded = BitmapFactory.decodeFile(path, bfo);
+        if (decoded == null) return null;
+        
+        // Shrink smoothly to the pixelated size, then enlarge with
+        // nearest-neighbour sampling, to keep the blocks sharp. An image too
+        // large to keep at full size stops short of enlarging, and is never
+        // kept larger than it was decoded.
+        boolean shrinking = smallW < decoded.getWidth();
+        Bitmap result;
+        if (!fullSize && !shrinking) {
+            result = decoded;
+        } else {
+            Bitmap small = Bitmap.createScaledBitmap(decoded, smallW, smallH, shrinking);
+            if (small != decoded) decoded.recycle();
+            result = fullSize ? Bitmap.createScaledBitmap(small, fullW, fullH, false) : small;
+            if (result != small) small.recycle();
+        }
+        
+        diskCache.put(name, result, System.nanoTime() - start);
+        return new Prepared(result, fullW, fullH);
+    }
+    
+    /**
+     * Determines whether the background image covers the given bounds. It
+     * might not while a new image is prepared after the surface has changed.
+     * 
+     * @param bounds the bounds of the surface
+     * @return {@code true} iff there is an image at least as large as
+     *         {@code bounds}
+     */
+    public boolean covers(Rect bounds) {
+        return image != null && imageWidth >= bounds.width() && imageHeight >= bounds.height();
+    }
+    
+    /**
+     * Draws the background so that it covers the given bounds. This must only
+     * be called if {@link #covers} is true.
+     * 
+     * @param c       the canvas to draw on
+     * @param bounds  the clip bounds of the canvas
+     * @param xOffset the horizontal scroll position, from 0 to 1
+     * @param yOffset the vertical scroll position, from 0 to 1
+     * @param paint   the paint to draw with
+     */
+    public void draw(Canvas c, Rect bounds, float xOffset, float yOffset, Paint paint) {
+        int left = Math.round((bounds.width() - imageWidth) * xOffset);
+        int top = Math.round((bounds.height() - imageHeight) * yOffset);
+        if (image.getWidth() == imageWidth) {
+            c.drawBitmap(image, left, top, paint);
+        } else {
+            dstRect.set(left, top, left + imageWidth, top + imageHeight);
+            c.drawBitmap(image, null, dstRect, paint);
+        }
+    }
+    
+}
@@ -0,0 +1,355 @@
+package uk.cpjsmith.ponypaper;
+
+import android.content.Context;
+import android.util.Base64;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent index of the XML custom pony files, stored in the
+ * application's private files directory. Each file is parsed and validated
+ * once, then compiled into a {@link PonyPack}, which holds the action graph,
+ * the timings and the decoded images at known offsets. The index records the
+ * size, modification time and hash of each file it has compiled, so that
+ * later loads of an unchanged file read the pack instead of parsing XML.
+ * <p>
+ * A file whose size or modification time has changed is hashed; if its
+ * content is the same as before (e.g. it was copied over itself) the existing
+ * pack is kept, otherwise it is compiled again. Packs are named after the
+ * hash of their source and never rewritten in place, so a pack that a running
+ * wallpaper has mapped is unaffected by changes to the index. All methods are
+ * thread-safe.
+ */
+public class CustomPonyIndex {
+    
+    private static final int MAGIC = 0x50494458; // "PIDX"
+    private static final int VERSION = 1;
+    
+    private static CustomPonyIndex instance = null;
+    
+    /**
+     * What the index knows about a single custom pony file.
+     */
+    private static class Entry {
+        
+        long size;
+        long modified;
+        /* The SHA-1 of the file, in hex; also the name of its pack. */
+        String hash;
+        
+    }
+    
+    private final File dir;
+    private final File indexFile;
+    /* Maps each file name to its entry. */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    /* The names of the packs being compiled or checked outside the lock,
+       once for each thread doing so; save() must not delete these, nor
+       their temporary files. */
+    private final List<String> pending = new ArrayList<String>();
+    private boolean changed = false;
+    
+    private int hitCount = 0;
+    private int compileCount = 0;
+    private int loadThreads = 0;
+    private int loadPonies = 0;
+    private long loadNanos = 0;
+    
+    private CustomPonyIndex(File dir) {
+        this.dir = dir;
+        this.indexFile = new File(dir, "index");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            android.util.Log.e("PonyPaper", "Error creating custom pony index in " + dir);
+        }
+        read();
+    }
+    
+    /**
+     * Returns the shared index, reading it from storage on first use.
+     * 
+     * @param context the current application context
+     * @return the process-wide index
+     */
+    public static synchronized CustomPonyIndex getInstance(Context context) {
+        if (instance == null) instance = new CustomPonyIndex(new File(context.getFilesDir(), "custom-index"));
+        return instance;
+    }
+    
+    private synchronized void read() {
+        if (!indexFile.exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                Entry entry = new Entry();
+                entry.size = in.readLong();
+                entry.modified = in.readLong();
+                entry.hash = in.readUTF();
+                if (getPackFile(entry).exists()) entries.put(name, entry);
+            }
+        } catch (IOException e) {
+            // Whatever was read is still good; the rest is compiled again.
+            android.util.Log.e("PonyPaper", "Error reading custom pony index: " + e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+    
+    /**
+     * Returns the compiled pack for an XML custom pony file, parsing and
+     * compiling the file only if it is new or has changed since it was last
+     * compiled. This may be called on any thread; the index is not written
+     * back to storage until {@link #save} is called.
+     * 
+     * @param file the XML file
+     * @return the compiled pack file, containing a single pony
+     * @throws Exception if the file cannot be read or is invalid, or the pack
+     *                   cannot be written
+     */
+    public File getCompiled(File file) throws Exception {
+        String name = file.getName();
+        long size = file.length();
+        long modified = file.lastModified();
+        
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(name);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                hitCount++;
+                return getPackFile(entry);
+            }
+        }
+        
+        String hash = hashFile(file);
+        Entry updated = new Entry();
+        updated.size = size;
+        updated.modified = modified;
+        updated.hash = hash;
+        File packFile = getPackFile(updated);
+        synchronized (this) {
+            pending.add(packFile.getName());
+        }
+        try {
+            boolean compiled = !packFile.exists();
+            if (compiled) compile(file, packFile);
+            
+            synchronized (this) {
+                entries.put(name, updated);
+                changed = true;
+                if (compiled) compileCount++;
+            }
+        } finally {
+            synchronized (this) {
+                pending.remove(packFile.getName());
+            }
+        }
+        return packFile;
+    }
+    
+    private void compile(File file, File packFile) throws Exception {
+        PonyDefinition definition;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            definition = PonyDefinition.parse(in);
+        } finally {
+            in.close();
+        }
+        definition.validate();
+        
+        PonyPack.Builder builder = new PonyPack.Builder() {
+            @Override
+            protected byte[] decode(String image) {
+                return Base64.decode(image, 0);
+            }
+        };
+        builder.addPony(file.getName(), definition);
+        PonyPack pack = builder.toPack();
+        // Check the images now, so that a bad one is reported once rather
+        // than every time the pack is loaded.
+        for (PonyPack.Action action : pack.ponies[0].actions) {
+            for (int dir = 0; dir < 2; dir++) {
+                SpriteSheet.validate(pack.getBlob(action.images[dir]), action.timings[dir], null);
+            }
+        }
+        
+        // Written under a temporary name, so a half-written pack is never
+        // read.
+        File temp = File.createTempFile(packFile.getName(), ".tmp", dir);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                pack.write(out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(packFile)) throw new IOException("Could not write " + packFile);
+        } finally {
+            temp.delete();
+        }
+    }
+    
+    /**
+     * Forgets the files that no longer exist, deletes the packs that no
+     * entry refers to, and writes the index to storage if it has changed.
+     * Packs are only deleted, never changed, so ponies already loaded from
+     * them are unaffected. Packs that another thread is still compiling are
+     * left alone, along with their temporary files.
+     * 
+     * @param present the names of all the custom pony files that currently
+     *                exist, whether or not they are enabled
+     */
+    public synchronized void save(Set<String> present) {
+        if (entries.keySet().retainAll(present)) changed = true;
+        
+        Set<String> packNames = new HashSet<String>();
+        for (Entry entry : entries.values()) {
+            packNames.add(getPackFile(entry).getName());
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.equals(indexFile) || packNames.contains(file.getName())) continue;
+                if (!isPending(file.getName())) file.delete();
+            }
+        }
+        
+        if (!changed) return;
+        File temp = new File(dir, "index.tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                out.writeUTF(item.getKey());
+                out.writeLong(item.getValue().size);
+                out.writeLong(item.getValue().modified);
+                out.writeUTF(item.getValue().hash);
+            }
+            out.close();
+            out = null;
+            if (temp.renameTo(indexFile)) changed = false;
+        } catch (IOException e) {
+            android.util.Log.e("PonyPaper", "Error writing custom pony index: " + e);
+        } finally {
+            closeQuietly(out);
+            temp.delete();
+        }
+    }
+    
+    /**
+     * Determines whether a file is a pack being compiled, or the temporary
+     * file it is being written to, which is named after it.
+     */
+    private boolean isPending(String fileName) {
+        for (String packName : pending) {
+            if (fileName.startsWith(packName)) return true;
+        }
+        return false;
+    }
+    
+    private File getPackFile(Entry entry) {
+        return new File(dir, entry.hash + PonyPack.EXTENSION);
+    }
+    
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digester.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        
+        StringBuilder result = new StringBuilder();
+        for (byte b : digester.digest()) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+    
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing more can be done.
+        }
+    }
+    
+    /** @return the number of files found unchanged in the index */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+    
+    /** @return the number of files that had to be parsed and compiled */
+    public synchronized int compileCount() {
+        return compileCount;
+    }
+    
+    /**
+     * Records how the most recent load of the custom pony files went.
+     * 
+     * @param threads the number of threads the files were loaded on
+     * @param ponies  the number of ponies loaded
+     * @param nanos   how long the whole load took
+     */
+    public synchronized void recordLoad(int threads, int ponies, long nanos) {
+        loadThreads = threads;
+        loadPonies = ponies;
+        loadNanos = nanos;
+    }
+    
+    /** @return the number of threads the most recent load used */
+    public synchronized int loadThreads() {
+        return loadThreads;
+    }
+    
+    /** @return the number of ponies the most recent load produced */
+    public synchronized int loadPonies() {
+        return loadPonies;
+    }
+    
+    /** @return how long the most recent load took, in milliseconds */
+    public synchronized long loadMillis() {
+        return loadNanos / 1000000;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "CustomPonyIndex[hits=" + hitCount + ",compiled=" + compileCount + ",loadThreads=" + loadThreads
+             + ",loadPonies=" + loadPonies + ",loadMs=" + loadNanos / 1000000 + "]";
+    }
+    
+}
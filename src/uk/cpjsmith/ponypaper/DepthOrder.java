@@ -0,0 +1,149 @@
+package uk.cpjsmith.ponypaper;
+
+/**
+ * Keeps a set of items, such as the ponies on screen, in drawing order: by
+ * y-coordinate, so that ponies higher up the screen are drawn first and
+ * appear further away. Items are numbered from 0 to the capacity.
+ * <p>
+ * The y-coordinates are cached as keys, set once per frame, so sorting makes
+ * no calls back to the items. Items with the same key are ordered by when
+ * they were last {@linkplain #renew renewed}, oldest first, so ponies level
+ * with each other do not swap places from frame to frame. The order changes
+ * little between frames, so it is kept sorted by an insertion pass, which
+ * takes time proportional to the number of items plus the number of changes;
+ * if there are many changes, e.g. after every pony has been reset, a merge
+ * sort takes over. Nothing is allocated after construction.
+ */
+public class DepthOrder {
+    
+    private final int size;
+    /* The items, in drawing order. */
+    private final int[] order;
+    /* The position of each item in order. */
+    private final int[] rank;
+    /* The y-coordinate of each item. */
+    private final int[] key;
+    /* When each item was last renewed, to order items with equal keys. */
+    private final int[] sequence;
+    private int nextSequence = 0;
+    /* Working space for the merge sort. */
+    private final int[] scratch;
+    
+    /**
+     * Creates an ordering of items, initially in numerical order.
+     * 
+     * @param capacity the number of items
+     */
+    public DepthOrder(int capacity) {
+        size = capacity;
+        order = new int[capacity];
+        rank = new int[capacity];
+        key = new int[capacity];
+        sequence = new int[capacity];
+        scratch = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            order[i] = i;
+            rank[i] = i;
+            sequence[i] = nextSequence++;
+        }
+    }
+    
+    /**
+     * Sets the y-coordinate of an item. The order is not changed until
+     * {@link #sort} is called.
+     * 
+     * @param item the item
+     * @param y    its y-coordinate
+     */
+    public void setY(int item, int y) {
+        key[item] = y;
+    }
+    
+    /**
+     * Marks an item as new, e.g. because another pony has taken its place.
+     * It will be drawn after any other item with the same y-coordinate.
+     * 
+     * @param item the item
+     */
+    public void renew(int item) {
+        sequence[item] = nextSequence++;
+    }
+    
+    /**
+     * Sorts the items by their current y-coordinates.
+     */
+    public void sort() {
+        int limit = 4 * size + 16;
+        int moves = 0;
+        for (int k = 1; k < size; k++) {
+            int item = order[k];
+            int j = k - 1;
+            while (j >= 0 && isDrawnAfter(order[j], item)) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = item;
+            moves += k - 1 - j;
+            if (moves > limit) {
+                mergeSort();
+                break;
+            }
+        }
+        for (int k = 0; k < size; k++) {
+            rank[order[k]] = k;
+        }
+    }
+    
+    private boolean isDrawnAfter(int lhs, int rhs) {
+        if (key[lhs] != key[rhs]) return key[lhs] > key[rhs];
+        return sequence[lhs] > sequence[rhs];
+    }
+    
+    /* A bottom-up merge sort of the whole order, for when it has been mixed
+       up too much for insertion to be quick. */
+    private void mergeSort() {
+        int[] from = order;
+        int[] to = scratch;
+        for (int width = 1; width < size; width *= 2) {
+            for (int low = 0; low < size; low += 2 * width) {
+                int mid = Math.min(low + width, size);
+                int high = Math.min(low + 2 * width, size);
+                int i = low;
+                int j = mid;
+                for (int k = low; k < high; k++) {
+                    if (i < mid && (j >= high || !isDrawnAfter(from[i], from[j]))) {
+                        to[k] = from[i++];
+                    } else {
+                        to[k] = from[j++];
+                    }
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != order) System.arraycopy(from, 0, order, 0, size);
+    }
+    
+    /**
+     * Returns the item at a position in the drawing order.
+     * 
+     * @param position the position, from 0 for the item drawn first
+     * @return the item
+     */
+    public int get(int position) {
+        return order[position];
+    }
+    
+    /**
+     * Returns the position of every item in the drawing order, as of the last
+     * call to {@link #sort}. The returned array is shared and must not be
+     * modified.
+     * 
+     * @return the position of each item, indexed by item
+     */
+    public int[] getRanks() {
+        return rank;
+    }
+    
+}
@@ -0,0 +1,238 @@
+package uk.cpjsmith.ponypaper;
+
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/**
+ * Paces the drawing of frames at a target rate and measures the real time that
+ * passes between them. Where available, frames are triggered by the display's
+ * vsync signal (via {@code Choreographer}) so that they land on vsync rather
+ * than jittering against it; otherwise a {@code Handler} is used, scheduling
+ * each frame relative to when it is due rather than to when the previous one
+ * finished.
+ * <p>
+ * The elapsed time is passed to the {@link Callback} as a whole number of
+ * 10-millisecond ticks, the unit used by {@link SpriteSheet} timings, which
+ * is also the fixed step of the simulation. Any remainder is carried over to
+ * the next frame, so no time is lost, and is also passed as a fraction of a
+ * tick so that drawing can interpolate between steps.
+ */
+public class FrameScheduler {
+    
+    /**
+     * Source of the current time, which may be replaced for testing.
+     */
+    public interface Clock {
+        
+        /**
+         * Returns the current time.
+         * 
+         * @return a monotonic time in nanoseconds
+         */
+        long nanoTime();
+        
+    }
+    
+    /**
+     * Receives the frames produced by a scheduler.
+     */
+    public interface Callback {
+        
+        /**
+         * Called when a frame should be drawn.
+         * 
+         * @param ticks         the number of 10-millisecond intervals that
+         *                      have passed since the previous frame
+         * @param interpolation the fraction of a tick that has passed since
+         *                      the last whole one, from 0 to 1
+         */
+        void onFrame(int ticks, float interpolation);
+        
+    }
+    
+    /** A {@code Clock} reading {@code System.nanoTime()}. */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+    
+    /** The default number of frames per second. */
+    public static final int DEFAULT_RATE = 25;
+    
+    private static final long NANOS_PER_TICK = 10000000L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    /* A frame may be drawn up to this early to allow for vsync jitter. */
+    private static final long SLACK_NANOS = 2000000L;
+    /* Longer gaps (e.g. while invisible) are not played back in full. */
+    private static final long MAX_ELAPSED_NANOS = 250000000L;
+    
+    private final Handler handler;
+    private final Clock clock;
+    private final Callback callback;
+    
+    private long framePeriod;
+    private boolean running = false;
+    private boolean firstFrame;
+    private long lastFrameTime;
+    private long nextFrameTime;
+    private long tickRemainder;
+    
+    private final Runnable handlerCallback = new Runnable() {
+        public void run() {
+            long now = clock.nanoTime();
+            onVsync(now);
+            if (running) {
+                long delay = (nextFrameTime - now) / 1000000L;
+                handler.postDelayed(this, Math.max(delay, 1));
+            }
+        }
+    };
+    
+    /* Only created where Choreographer exists (API 16+). */
+    private VsyncCallback vsyncCallback;
+    
+    private class VsyncCallback implements Choreographer.FrameCallback {
+        
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!running) return;
+            onVsync(frameTimeNanos);
+            if (!running) return; // Stopped by the callback.
+            
+            // Sleep through the vsyncs before the next frame is due, rather
+            // than waking for each one only to skip it. Any callback posted by
+            // a restart during the frame is replaced.
+            Choreographer choreographer = Choreographer.getInstance();
+            choreographer.removeFrameCallback(this);
+            long delay = (nextFrameTime - SLACK_NANOS - clock.nanoTime()) / 1000000L;
+            if (delay > 0) {
+                choreographer.postFrameCallbackDelayed(this, delay);
+            } else {
+                choreographer.postFrameCallback(this);
+            }
+        }
+        
+        private void start() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+        
+        private void stop() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+        
+    }
+    
+    /**
+     * Creates a new scheduler using vsync if it is available. It must be
+     * started and stopped from the thread that owns {@code handler}.
+     * 
+     * @param handler  the handler to schedule frames with, if vsync is
+     *                 unavailable
+     * @param callback the object to be called for each frame
+     */
+    public FrameScheduler(Handler handler, Callback callback) {
+        this(handler, SYSTEM_CLOCK, callback, Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN);
+    }
+    
+    /**
+     * Creates a new scheduler.
+     * 
+     * @param handler  the handler to schedule frames with, if vsync is
+     *                 unavailable or not used
+     * @param clock    the source of the current time
+     * @param callback the object to be called for each frame
+     * @param useVsync whether to trigger frames from vsync; requires API 16
+     */
+    public FrameScheduler(Handler handler, Clock clock, Callback callback, boolean useVsync) {
+        this.handler = handler;
+        this.clock = clock;
+        this.callback = callback;
+        if (useVsync) vsyncCallback = new VsyncCallback();
+        setTargetRate(DEFAULT_RATE);
+    }
+    
+    /**
+     * Changes the number of frames drawn per second. The rate is an upper
+     * bound; where vsync is used, each frame is drawn on the first vsync at or
+     * after the time it is due.
+     * 
+     * @param framesPerSecond the target frame rate
+     * @throws IllegalArgumentException if {@code framesPerSecond <= 0}
+     */
+    public void setTargetRate(int framesPerSecond) {
+        if (framesPerSecond <= 0) throw new IllegalArgumentException("Invalid frame rate.");
+        framePeriod = NANOS_PER_SECOND / framesPerSecond;
+    }
+    
+    /**
+     * Starts producing frames. The first frame is drawn at the next
+     * opportunity and reports zero elapsed ticks.
+     */
+    public void start() {
+        if (running) return;
+        running = true;
+        firstFrame = true;
+        tickRemainder = 0;
+        if (vsyncCallback != null) {
+            vsyncCallback.start();
+        } else {
+            handler.post(handlerCallback);
+        }
+    }
+    
+    /**
+     * Stops producing frames.
+     */
+    public void stop() {
+        running = false;
+        if (vsyncCallback != null) {
+            vsyncCallback.stop();
+        } else {
+            handler.removeCallbacks(handlerCallback);
+        }
+    }
+    
+    /**
+     * Returns whether the scheduler is currently producing frames.
+     * 
+     * @return {@code true} between calls to {@link #start} and {@link #stop}
+     */
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Handles a vsync (or timer) pulse, drawing a frame if one is due. This is
+     * exposed so that the pacing can be exercised with synthetic timestamps.
+     * 
+     * @param frameTimeNanos the time of the pulse, on the scheduler's clock
+     * @return {@code true} iff a frame was drawn
+     */
+    boolean onVsync(long frameTimeNanos) {
+        int ticks = 0;
+        if (firstFrame) {
+            firstFrame = false;
+            nextFrameTime = frameTimeNanos;
+        } else {
+            if (frameTimeNanos < nextFrameTime - SLACK_NANOS) return false;
+            
+            long elapsed = Math.min(frameTimeNanos - lastFrameTime, MAX_ELAPSED_NANOS);
+            tickRemainder += elapsed;
+            ticks = (int)(tickRemainder / NANOS_PER_TICK);
+            tickRemainder -= ticks * NANOS_PER_TICK;
+        }
+        
+        // Keep frames evenly spaced on average, but don't try to catch up
+        // after falling more than a frame behind.
+        nextFrameTime += framePeriod;
+        if (frameTimeNanos - nextFrameTime >= framePeriod) nextFrameTime = frameTimeNanos + framePeriod;
+        lastFrameTime = frameTimeNanos;
+        
+        callback.onFrame(ticks, (float)tickRemainder / NANOS_PER_TICK);
+        return true;
+    }
+    
+}
@@ -0,0 +1,205 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Rect;
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the screen, used to find the pony under a touch without
+ * testing every pony. Items are numbered from 0 to the capacity, and each has
+ * bounds, outside which it cannot be hit. An item is filed under the cell
+ * containing the centre of its bounds, in a linked list threaded through
+ * arrays, so moving it within a cell or from one cell to another takes
+ * constant time and allocates nothing.
+ * <p>
+ * A query examines only the cells near the point, as far out as the largest
+ * item could reach, so with cells about the size of a pony it takes roughly
+ * constant time however many ponies there are.
+ */
+public class HitGrid {
+    
+    /**
+     * Decides whether a point is on an item, once it is known to be within
+     * the item's bounds.
+     */
+    public interface Test {
+        
+        /**
+         * Tests whether a point hits an item.
+         * 
+         * @param item the item
+         * @param x    the x-coordinate of the point
+         * @param y    the y-coordinate of the point
+         * @return {@code true} iff the point is on the item
+         */
+        boolean hits(int item, float x, float y);
+        
+    }
+    
+    private static final int NONE = -1;
+    
+    private final float[] left;
+    private final float[] top;
+    private final float[] right;
+    private final float[] bottom;
+    /* The cell each item is filed under, or NONE. */
+    private final int[] cellOf;
+    /* The neighbours of each item in its cell's list. */
+    private final int[] nextInCell;
+    private final int[] prevInCell;
+    
+    private final Rect area = new Rect();
+    private int cellSize = 0;
+    private int columns = 0;
+    private int rows = 0;
+    /* The first item in each cell, or NONE. */
+    private int[] cellHead = new int[0];
+    /* How far any item's bounds reach from its centre. Only ever grows. */
+    private float maxHalfWidth = 0;
+    private float maxHalfHeight = 0;
+    
+    /**
+     * Creates an empty grid.
+     * 
+     * @param capacity the number of items, which are numbered from 0
+     */
+    public HitGrid(int capacity) {
+        left = new float[capacity];
+        top = new float[capacity];
+        right = new float[capacity];
+        bottom = new float[capacity];
+        cellOf = new int[capacity];
+        nextInCell = new int[capacity];
+        prevInCell = new int[capacity];
+        Arrays.fill(cellOf, NONE);
+    }
+    
+    /**
+     * Sets the area covered by the grid. Items may lie outside it, but are
+     * then filed under the nearest cell. If the area or cell size has
+     * changed, the grid is emptied.
+     * 
+     * @param bounds   the area to cover, usually the screen
+     * @param cellSize the width and height of each cell, in pixels
+     */
+    public void setArea(Rect bounds, int cellSize) {
+        cellSize = Math.max(1, cellSize);
+        if (bounds.equals(area) && cellSize == this.cellSize) return;
+        
+        area.set(bounds);
+        this.cellSize = cellSize;
+        columns = Math.max(1, (bounds.width() + cellSize - 1) / cellSize);
+        rows = Math.max(1, (bounds.height() + cellSize - 1) / cellSize);
+        clear();
+    }
+    
+    /**
+     * Removes every item from the grid.
+     */
+    public void clear() {
+        if (cellHead.length != columns * rows) cellHead = new int[columns * rows];
+        Arrays.fill(cellHead, NONE);
+        Arrays.fill(cellOf, NONE);
+        maxHalfWidth = 0;
+        maxHalfHeight = 0;
+    }
+    
+    /**
+     * Adds an item to the grid, or moves it if it is already there.
+     * 
+     * @param item the item
+     * @param l    the left edge of its bounds
+     * @param t    the top edge of its bounds
+     * @param r    the right edge of its bounds
+     * @param b    the bottom edge of its bounds
+     */
+    public void put(int item, float l, float t, float r, float b) {
+        left[item] = l;
+        top[item] = t;
+        right[item] = r;
+        bottom[item] = b;
+        maxHalfWidth = Math.max(maxHalfWidth, (r - l) / 2);
+        maxHalfHeight = Math.max(maxHalfHeight, (b - t) / 2);
+        
+        int cell = getCell(column((l + r) / 2), row((t + b) / 2));
+        if (cell == cellOf[item]) return;
+        remove(item);
+        
+        int head = cellHead[cell];
+        nextInCell[item] = head;
+        prevInCell[item] = NONE;
+        if (head != NONE) prevInCell[head] = item;
+        cellHead[cell] = item;
+        cellOf[item] = cell;
+    }
+    
+    /**
+     * Removes an item from the grid, if it is there.
+     * 
+     * @param item the item
+     */
+    public void remove(int item) {
+        int cell = cellOf[item];
+        if (cell == NONE) return;
+        
+        int prev = prevInCell[item];
+        int next = nextInCell[item];
+        if (prev != NONE) {
+            nextInCell[prev] = next;
+        } else {
+            cellHead[cell] = next;
+        }
+        if (next != NONE) prevInCell[next] = prev;
+        cellOf[item] = NONE;
+    }
+    
+    /**
+     * Finds the topmost item at a point.
+     * 
+     * @param x    the x-coordinate of the point
+     * @param y    the y-coordinate of the point
+     * @param rank the drawing position of each item, higher being drawn
+     *             later, or {@code null} if items are drawn in numerical
+     *             order
+     * @param test decides whether the point is on an item whose bounds
+     *             contain it
+     * @return the item drawn on top of all those hit, or -1 if none is hit
+     */
+    public int findTopmost(float x, float y, int[] rank, Test test) {
+        if (cellHead.length == 0) return NONE;
+        int c0 = column(x - maxHalfWidth);
+        int c1 = column(x + maxHalfWidth);
+        int r0 = row(y - maxHalfHeight);
+        int r1 = row(y + maxHalfHeight);
+        
+        int result = NONE;
+        int resultRank = Integer.MIN_VALUE;
+        for (int row = r0; row <= r1; row++) {
+            for (int column = c0; column <= c1; column++) {
+                for (int i = cellHead[getCell(column, row)]; i != NONE; i = nextInCell[i]) {
+                    int r = rank != null ? rank[i] : i;
+                    if (r <= resultRank) continue;
+                    if (x < left[i] || x >= right[i] || y < top[i] || y >= bottom[i]) continue;
+                    if (!test.hits(i, x, y)) continue;
+                    result = i;
+                    resultRank = r;
+                }
+            }
+        }
+        return result;
+    }
+    
+    private int column(float x) {
+        int column = (int)Math.floor((x - area.left) / cellSize);
+        return Math.max(0, Math.min(columns - 1, column));
+    }
+    
+    private int row(float y) {
+        int row = (int)Math.floor((y - area.top) / cellSize);
+        return Math.max(0, Math.min(rows - 1, row));
+    }
+    
+    private int getCell(int column, int row) {
+        return row * columns + column;
+    }
+    
+}
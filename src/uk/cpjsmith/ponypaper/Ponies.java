@@ -3,38 +3,81 @@ package uk.cpjsmith.ponypaper;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Canvas;
-import android.graphics.Point;
 import android.graphics.Rect;
 import android.view.MotionEvent;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Class to hold the collection of ponies and coordinate their overall motion.
+ * In crowd mode, the enabled ponies are instead used as the species of a
+ * {@link PonyCrowd}, which is remade whenever they change.
  */
 public class Ponies {
     
-    private static final Comparator<Pony> compareY = new Comparator<Pony>() {
-        @Override
-        public int compare(Pony lhs, Pony rhs) {
-            int yL = lhs.getY();
-            int yR = rhs.getY();
-            return yL < yR ? -1 : yL > yR ? 1 : 0;
-        }
-    };
-    
-    private int activeCount;
+    private final Context context;
+    /* The number of ponies the user wants on screen at once. */
+    private int targetCount;
     
     private Random random;
     
+    /* Every enabled pony, keyed by the preference that enables it. */
+    private final LinkedHashMap<String, List<Pony>> groups;
+    /* When each file of custom ponies was last modified, as loaded. */
+    private final HashMap<String, Long> customModified = new HashMap<String, Long>();
+    /* Ponies newly enabled, being loaded in the background, by preference. */
+    private final HashMap<String, Future<List<Pony>>> pendingGroups = new HashMap<String, Future<List<Pony>>>();
+    
     private ArrayList<Pony> inactivePonies;
+    /* Slots may be null while waiting for an incoming pony to load. */
     private Pony[] activePonies;
+    /* The order in which to draw the slots. */
+    private DepthOrder depthOrder;
+    
+    /* The next pony to come on screen, and the task loading its sprites,
+       which gives how long that took. */
+    private Pony incomingPony = null;
+    private Future<Long> incomingTask = null;
     
     private int initialPointerId = -1;
     private Pony draggedPony = null;
     
+    /* The hit bounds of the active ponies, by slot, as of the last update. */
+    private HitGrid hitGrid;
+    private final Rect hitBounds = new Rect();
+    private final HitGrid.Test hitTest = new HitGrid.Test() {
+        public boolean hits(int slot, float x, float y) {
+            return activePonies[slot] != null && activePonies[slot].testHitPoint(x, y);
+        }
+    };
+    
+    /* Set until the current set of ponies has been drawn once in full. */
+    private boolean needsFullRedraw = true;
+    
+    /* The size of the crowd in crowd mode, otherwise 0. */
+    private final int crowdSize;
+    private PonyCrowd crowd = null;
+    /* The crowd being made in the background to replace it. */
+    private Future<PonyCrowd> incomingCrowd = null;
+    /* Set when the enabled ponies have changed since the crowd was made. */
+    private boolean crowdStale = true;
+    
+    /* Load times, for measurement: from creation to the end of the first
+       update, and of the sprites of every pony that has come on screen. */
+    private final long createdNanos;
+    private long startupNanos = 0;
+    private int swapCount = 0;
+    private long swapNanos = 0;
+    
     /**
      * Creates a new {@code Ponies} instance.
      * 
@@ -42,12 +85,22 @@ public class Ponies {
      * @param prefs   the user's preferences of which ponies to load
      */
     public Ponies(Context context, SharedPreferences prefs) {
-        inactivePonies = AllPonies.getPonies(context, prefs);
+        createdNanos = System.nanoTime();
+        this.context = context;
+        groups = AllPonies.getPonyGroups(context, prefs);
+        inactivePonies = new ArrayList<Pony>();
+        for (String key : groups.keySet()) {
+            inactivePonies.addAll(groups.get(key));
+            recordModified(key);
+        }
         
-        activeCount = prefs.getInt("pref_num_ponies", 4);
-        activeCount = Math.min(inactivePonies.size(), activeCount);
+        targetCount = prefs.getInt("pref_num_ponies", 4);
+        crowdSize = getCrowdSize(prefs);
+        int activeCount = crowdSize > 0 ? 0 : Math.min(inactivePonies.size(), targetCount);
         
         random = new Random();
+        hitGrid = new HitGrid(activeCount);
+        depthOrder = new DepthOrder(activeCount);
         activePonies = new Pony[activeCount];
         for (int i = 0; i < activeCount; i++) {
             int j = random.nextInt(inactivePonies.size());
@@ -55,55 +108,570 @@ public class Ponies {
         }
     }
     
+    private static int getCrowdSize(SharedPreferences prefs) {
+        try {
+            return Integer.parseInt(prefs.getString("pref_crowd_size", "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
     /**
      * Resets the position of all active (on-screen) ponies.
      */
     public void reset() {
-        for (Pony pony : activePonies) pony.reset();
+        for (Pony pony : activePonies) {
+            if (pony != null) pony.reset();
+        }
+        if (crowd != null) crowd.reset();
+        hitGrid.clear();
+        needsFullRedraw = true;
+    }
+    
+    /**
+     * Releases the sprites held by all ponies. This should be called when this
+     * object is about to be discarded.
+     */
+    public void release() {
+        reset();
+        cancelIncoming();
+        for (Future<List<Pony>> task : pendingGroups.values()) {
+            task.cancel(false);
+        }
+        pendingGroups.clear();
+        if (crowd != null || incomingCrowd != null) {
+            // Queued behind making the incoming crowd, so it is released too.
+            final PonyCrowd oldCrowd = crowd;
+            final Future<PonyCrowd> oldTask = incomingCrowd;
+            SpriteLoader.submit(new Runnable() {
+                public void run() {
+                    releaseCrowd(oldCrowd, oldTask);
+                }
+            });
+        }
+        crowd = null;
+        incomingCrowd = null;
+    }
+    
+    /**
+     * Releases sprites to reduce memory use. The incoming pony's preloaded
+     * sprites are always dropped; it is chosen again when next needed. A
+     * crowd drops the actions that none of its members is performing.
+     * 
+     * @param critical whether on-screen ponies should also drop all but their
+     *                 current actions, which are otherwise kept along with
+     *                 those they can change to next
+     */
+    public void trimMemory(boolean critical) {
+        if (crowd != null) crowd.trimMemory();
+        if (incomingPony != null) {
+            Pony pony = incomingPony;
+            cancelIncoming();
+            inactivePonies.add(pony);
+        }
+        if (critical) {
+            for (int i = 0; i < activePonies.length; i++) {
+                if (activePonies[i] != null) activePonies[i].unloadIdleActions();
+            }
+        }
+    }
+    
+    private void cancelIncoming() {
+        if (incomingPony == null) return;
+        // Queued behind the preload, so the two never run concurrently.
+        final Pony pony = incomingPony;
+        SpriteLoader.submit(new Runnable() {
+            public void run() {
+                pony.reset();
+            }
+        });
+        incomingPony = null;
+        incomingTask = null;
+    }
+    
+    /**
+     * Adds or removes the ponies enabled by a preference. Other ponies are
+     * unaffected, and those on screen stay there. Added ponies are loaded in
+     * the background, and join the others in a later {@link #update}.
+     * 
+     * @param key     the preference key, for which {@link
+     *                AllPonies#isPonyKey} is true
+     * @param enabled the new value of the preference
+     */
+    public void setEnabled(String key, boolean enabled) {
+        if (enabled == hasGroup(key)) return;
+        if (enabled) {
+            addGroup(key);
+        } else {
+            removeGroup(key);
+        }
+        resizeActive();
+    }
+    
+    /**
+     * Reloads any enabled custom pony files which have been added or changed
+     * since they were loaded, and removes the ponies of any which have been
+     * deleted. As with {@link #setEnabled}, files are loaded in the
+     * background.
+     * 
+     * @param prefs the user's preferences of which ponies to load
+     */
+    public void reloadChangedCustomPonies(SharedPreferences prefs) {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) return;
+        File[] files = dir.listFiles(AllPonies.customFilter);
+        if (files == null) return;
+        
+        ArrayList<String> removed = new ArrayList<String>();
+        for (String key : customModified.keySet()) {
+            if (!AllPonies.getCustomFile(context, key).exists()) removed.add(key);
+        }
+        for (String key : removed) {
+            removeGroup(key);
+        }
+        
+        for (int i = 0; i < files.length; i++) {
+            String key = "pref_custom_" + files[i].getName();
+            if (!prefs.getBoolean(key, true)) continue;
+            Long modified = customModified.get(key);
+            if (!hasGroup(key) || modified == null || modified.longValue() != files[i].lastModified()) {
+                removeGroup(key);
+                addGroup(key);
+            }
+        }
+        resizeActive();
+    }
+    
+    /**
+     * Changes the number of ponies on screen at once. Ponies are removed from
+     * the screen only if there are now too many; new ones walk on as usual.
+     * 
+     * @param count the number of ponies the user wants on screen
+     */
+    public void setTargetCount(int count) {
+        targetCount = count;
+        resizeActive();
+    }
+    
+    private boolean hasGroup(String key) {
+        return groups.containsKey(key) || pendingGroups.containsKey(key);
+    }
+    
+    private void addGroup(final String key) {
+        // Recorded now, so that a change during the load is seen next time.
+        recordModified(key);
+        pendingGroups.put(key, SpriteLoader.submit(new Callable<List<Pony>>() {
+            public List<Pony> call() {
+                return AllPonies.makePonies(context, key);
+            }
+        }));
+    }
+    
+    /**
+     * Adds the ponies that have finished loading since the last update to
+     * those that can come on screen.
+     */
+    private void addLoadedGroups() {
+        boolean added = false;
+        Iterator<Map.Entry<String, Future<List<Pony>>>> it = pendingGroups.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Future<List<Pony>>> pending = it.next();
+            if (!pending.getValue().isDone()) continue;
+            it.remove();
+            try {
+                List<Pony> group = pending.getValue().get();
+                groups.put(pending.getKey(), group);
+                inactivePonies.addAll(group);
+                crowdStale = true;
+                added = true;
+            } catch (ExecutionException e) {
+                android.util.Log.e("PonyPaper", "Error loading " + pending.getKey() + ": " + e.getCause());
+                customModified.remove(pending.getKey());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (added) resizeActive();
+    }
+    
+    private void removeGroup(String key) {
+        Future<List<Pony>> pending = pendingGroups.remove(key);
+        if (pending != null) pending.cancel(false);
+        List<Pony> group = groups.remove(key);
+        customModified.remove(key);
+        if (group == null) return;
+        crowdStale = true;
+        
+        for (Pony pony : group) {
+            if (pony == incomingPony) {
+                cancelIncoming();
+            } else if (!inactivePonies.remove(pony)) {
+                for (int i = 0; i < activePonies.length; i++) {
+                    if (activePonies[i] == pony) {
+                        takeOffScreen(pony);
+                        activePonies[i] = null;
+                    }
+                }
+            }
+        }
+    }
+    
+    private void recordModified(String key) {
+        File file = AllPonies.getCustomFile(context, key);
+        if (file != null) customModified.put(key, file.lastModified());
+    }
+    
+    private void takeOffScreen(Pony pony) {
+        if (pony == draggedPony) {
+            draggedPony = null;
+            initialPointerId = -1;
+        }
+        pony.reset();
+        needsFullRedraw = true;
+    }
+    
+    /**
+     * Resizes the array of active ponies to match the target count, or the
+     * number of ponies available if that is fewer. Ponies already on screen
+     * are kept where possible, and new slots start empty, to be filled by
+     * {@link #update}.
+     */
+    private void resizeActive() {
+        int available = inactivePonies.size() + (incomingPony != null ? 1 : 0);
+        for (int i = 0; i < activePonies.length; i++) {
+            if (activePonies[i] != null) available++;
+        }
+        int count = crowdSize > 0 ? 0 : Math.min(targetCount, available);
+        if (count == activePonies.length) return;
+        
+        Pony[] resized = new Pony[count];
+        int j = 0;
+        for (int i = 0; i < activePonies.length; i++) {
+            Pony pony = activePonies[i];
+            if (pony == null) continue;
+            if (j < count) {
+                resized[j++] = pony;
+            } else {
+                takeOffScreen(pony);
+                inactivePonies.add(pony);
+            }
+        }
+        activePonies = resized;
+        hitGrid = new HitGrid(count);
+        depthOrder = new DepthOrder(count);
+        needsFullRedraw = true;
     }
     
     /**
      * Updates all active ponies for one frame of motion and draws them on the
-     * given canvas.
+     * given canvas. Apart from when a pony is replaced by another, this
+     * allocates no objects.
      * 
-     * @param c the canvas to draw on
+     * @param c             the canvas to draw on
+     * @param bounds        the clip bounds of the canvas
+     * @param ticks         the number of 10-millisecond intervals that have
+     *                      passed since the previous frame
+     * @param interpolation the fraction of a tick that has passed since the
+     *                      last whole one
      */
-    public void drawAndUpdate(Canvas c) {
+    public void drawAndUpdate(Canvas c, Rect bounds, int ticks, float interpolation) {
+        update(bounds, ticks, interpolation);
+        draw(c);
+    }
+    
+    /**
+     * Updates all active ponies for one frame of motion, without drawing
+     * them.
+     * 
+     * @param bounds        the bounds of the screen
+     * @param ticks         the number of 10-millisecond intervals that have
+     *                      passed since the previous frame
+     * @param interpolation the fraction of a tick that has passed since the
+     *                      last whole one, used to draw the ponies part way
+     *                      between their simulated positions
+     * @see Pony#doUpdate(Rect, int, float)
+     */
+    public void update(Rect bounds, int ticks, float interpolation) {
+        if (!pendingGroups.isEmpty()) addLoadedGroups();
+        if (crowdSize > 0) {
+            if (crowdStale) startCrowd();
+            if (incomingCrowd != null && incomingCrowd.isDone()) takeCrowd();
+            if (crowd != null) crowd.update(bounds, ticks, interpolation);
+            if (startupNanos == 0) startupNanos = System.nanoTime() - createdNanos;
+            return;
+        }
+        
         for (int i = 0; i < activePonies.length; i++) {
-            activePonies[i].doUpdate(c.getClipBounds());
-            if (activePonies[i].goneOffScreen()) {
-                Pony temp = activePonies[i];
-                temp.reset();
-                if (inactivePonies.size() != 0) {
-                    int j = random.nextInt(inactivePonies.size());
-                    activePonies[i] = inactivePonies.remove(j);
-                    inactivePonies.add(temp);
+            Pony pony = activePonies[i];
+            
+            if (pony == null) {
+                if (isIncomingReady()) {
+                    activePonies[i] = takeIncoming();
+                    if (activePonies[i] != null) {
+                        activePonies[i].doUpdate(bounds, 0, interpolation);
+                        depthOrder.renew(i);
+                        needsFullRedraw = true;
+                    }
+                } else if (incomingPony == null && !inactivePonies.isEmpty()) {
+                    // A slot has been added or freed by a preference change.
+                    startIncoming();
+                }
+                continue;
+            }
+            
+            pony.doUpdate(bounds, ticks, interpolation);
+            if (pony.goneOffScreen()) {
+                pony.reset();
+                needsFullRedraw = true;
+                
+                if (incomingPony == null && inactivePonies.isEmpty()) {
+                    // There's no-one else, so the same pony comes back, once
+                    // its sprites have been loaded again in the background.
+                    inactivePonies.add(pony);
+                    startIncoming();
+                    activePonies[i] = null;
+                    continue;
+                }
+                
+                if (incomingPony == null) startIncoming();
+                inactivePonies.add(pony);
+                // Leave the slot empty rather than wait for the sprites.
+                activePonies[i] = isIncomingReady() ? takeIncoming() : null;
+                if (activePonies[i] != null) {
+                    activePonies[i].doUpdate(bounds, 0, interpolation);
+                    depthOrder.renew(i);
                 }
-                activePonies[i].doUpdate(c.getClipBounds());
+            } else if (pony.isLeaving() && incomingPony == null && !inactivePonies.isEmpty()) {
+                startIncoming();
             }
         }
-        Arrays.sort(activePonies, compareY);
+        sortByY();
+        updateHitGrid(bounds);
+        if (startupNanos == 0) startupNanos = System.nanoTime() - createdNanos;
+    }
+    
+    /**
+     * Sorts the slots into drawing order by the y-coordinates of their ponies,
+     * with empty slots last.
+     */
+    private void sortByY() {
         for (int i = 0; i < activePonies.length; i++) {
-            activePonies[i].drawOn(c);
+            depthOrder.setY(i, activePonies[i] != null ? activePonies[i].getY() : Integer.MAX_VALUE);
+        }
+        depthOrder.sort();
+    }
+    
+    /**
+     * Files each active pony in the hit grid under its new position. Few
+     * ponies change cell from one frame to the next, so this is cheap.
+     */
+    private void updateHitGrid(Rect bounds) {
+        hitGrid.setArea(bounds, getCellSize(bounds));
+        for (int i = 0; i < activePonies.length; i++) {
+            if (activePonies[i] == null) {
+                hitGrid.remove(i);
+            } else {
+                activePonies[i].getHitBounds(hitBounds);
+                hitGrid.put(i, hitBounds.left, hitBounds.top, hitBounds.right, hitBounds.bottom);
+            }
+        }
+    }
+    
+    /**
+     * Returns the size of hit grid cell to use on a screen. This is a little
+     * smaller than a pony, so that only nearby ponies are tested.
+     * 
+     * @param bounds the bounds of the screen
+     * @return the cell size in pixels
+     */
+    static int getCellSize(Rect bounds) {
+        return Math.min(bounds.width(), bounds.height()) / 4;
+    }
+    
+    /**
+     * Starts making a crowd from the currently enabled ponies in the
+     * background, as it loads all of their sprites. The current crowd shares
+     * its actions with the new one, so it leaves the screen at once and is
+     * released before the new one is made; every member of the new crowd
+     * enters afresh.
+     */
+    private void startCrowd() {
+        final ArrayList<Pony> species = new ArrayList<Pony>();
+        for (List<Pony> group : groups.values()) {
+            species.addAll(group);
+        }
+        final PonyCrowd oldCrowd = crowd;
+        final Future<PonyCrowd> oldTask = incomingCrowd;
+        incomingCrowd = SpriteLoader.submit(new Callable<PonyCrowd>() {
+            public PonyCrowd call() {
+                releaseCrowd(oldCrowd, oldTask);
+                return new PonyCrowd(species, crowdSize);
+            }
+        });
+        crowd = null;
+        crowdStale = false;
+        needsFullRedraw = true;
+    }
+    
+    private void takeCrowd() {
+        try {
+            crowd = incomingCrowd.get();
+        } catch (ExecutionException e) {
+            android.util.Log.e("PonyPaper", "Error loading crowd: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        incomingCrowd = null;
+        needsFullRedraw = true;
+    }
+    
+    /**
+     * Releases a crowd, and the crowd that was being made to replace it. This
+     * runs on the loader thread, after the replacement has been made.
+     * 
+     * @param crowd the crowd to release, or {@code null}
+     * @param task  the task making its replacement, or {@code null}
+     */
+    private static void releaseCrowd(PonyCrowd crowd, Future<PonyCrowd> task) {
+        if (crowd != null) crowd.release();
+        if (task == null) return;
+        try {
+            task.get().release();
+        } catch (ExecutionException e) {
+            // There is no crowd to release.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Chooses the next pony to come on screen and starts loading its sprites
+     * in the background.
+     */
+    private void startIncoming() {
+        final Pony pony = inactivePonies.remove(random.nextInt(inactivePonies.size()));
+        incomingPony = pony;
+        incomingTask = SpriteLoader.submit(new Callable<Long>() {
+            public Long call() {
+                long start = System.nanoTime();
+                pony.preload();
+                return System.nanoTime() - start;
+            }
+        });
+    }
+    
+    private boolean isIncomingReady() {
+        return incomingTask != null && incomingTask.isDone();
+    }
+    
+    /**
+     * Takes the incoming pony, once its sprites have finished loading. A pony
+     * whose sprites could not be loaded is dropped from the rotation, so that
+     * it is not tried again every time its turn comes round.
+     * 
+     * @return the pony to put on screen, or {@code null} if loading failed
+     */
+    private Pony takeIncoming() {
+        Pony pony = incomingPony;
+        incomingPony = null;
+        try {
+            swapNanos += incomingTask.get();
+            swapCount++;
+        } catch (ExecutionException e) {
+            android.util.Log.e("PonyPaper", "Error preloading pony: " + e.getCause());
+            pony.reset();
+            pony = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        incomingTask = null;
+        return pony;
+    }
+    
+    /**
+     * Returns how long these ponies took to start: from their creation, which
+     * loads the custom ponies, to the end of the first update, which loads
+     * the sprites of those first on screen.
+     * 
+     * @return the time in milliseconds, or 0 before the first update
+     */
+    public long startupMillis() {
+        return startupNanos / 1000000;
+    }
+    
+    /** @return the number of ponies that have come on screen after the first */
+    public int swapCount() {
+        return swapCount;
+    }
+    
+    /** @return the total time spent loading those ponies' sprites, in ms */
+    public long swapMillis() {
+        return swapNanos / 1000000;
+    }
+    
+    /**
+     * Draws all active ponies on the given canvas, in their current state.
+     * 
+     * @param c the canvas to draw on
+     */
+    public void draw(Canvas c) {
+        for (int i = 0; i < activePonies.length; i++) {
+            Pony pony = activePonies[depthOrder.get(i)];
+            if (pony != null) pony.drawOn(c);
+        }
+        if (crowd != null) crowd.draw(c);
+        needsFullRedraw = false;
+    }
+    
+    /**
+     * Determines whether the next frame can be drawn by repainting only the
+     * areas the ponies have moved through. This is not possible if a pony has
+     * been replaced or is being dragged, or in crowd mode, where the ponies
+     * cover most of the screen anyway.
+     * 
+     * @return {@code true} if the whole screen must be redrawn
+     */
+    public boolean needsFullRedraw() {
+        return needsFullRedraw || draggedPony != null || crowdSize > 0;
+    }
+    
+    /**
+     * Adds the areas that have changed since the last call to {@link #draw}
+     * to the given rectangle.
+     * 
+     * @param dirty the rectangle to expand
+     */
+    public void addDirtyRegion(Rect dirty) {
+        for (int i = 0; i < activePonies.length; i++) {
+            if (activePonies[i] != null) activePonies[i].addDirtyRegion(dirty);
         }
     }
     
     /**
      * Handles a touch event on the screen. This allows the user a means of
-     * dragging ponies around the screen.
+     * dragging ponies around the screen. The event is passed as values,
+     * rather than as a {@code MotionEvent}, so that it can be handed to the
+     * render thread without copying it.
      * 
-     * @param event the touch event that was performed by the user
+     * @param action    the masked action of the event, e.g. {@code
+     *                  MotionEvent.ACTION_DOWN}
+     * @param pointerId the identifier of the pointer the action concerns
+     * @param x         the x-coordinate of the first pointer
+     * @param y         the y-coordinate of the first pointer
      */
-    public void onTouchEvent(MotionEvent event) {
-        switch (event.getActionMasked()) {
+    public void onTouchEvent(int action, int pointerId, float x, float y) {
+        if (crowd != null) {
+            crowd.onTouchEvent(action, pointerId, x, y);
+            return;
+        }
+        
+        switch (action) {
             case MotionEvent.ACTION_DOWN:
                 if (draggedPony != null) draggedPony.stopDrag();
                 
-                initialPointerId = event.getPointerId(0);
-                draggedPony = null;
-                for (Pony pony : activePonies) {
-                    if (pony.testHitPoint(event.getX(), event.getY())) draggedPony = pony;
-                }
+                initialPointerId = pointerId;
+                int slot = hitGrid.findTopmost(x, y, depthOrder.getRanks(), hitTest);
+                draggedPony = slot >= 0 ? activePonies[slot] : null;
                 if (draggedPony != null) {
                     draggedPony.startDrag();
                 }
@@ -119,12 +687,12 @@ public class Ponies {
                 
             case MotionEvent.ACTION_MOVE:
                 if (draggedPony != null) {
-                    draggedPony.moveTo(new Point(Math.round(event.getX()), Math.round(event.getY())));
+                    draggedPony.moveTo(Math.round(x), Math.round(y));
                 }
                 break;
                 
             case MotionEvent.ACTION_POINTER_UP:
-                if (event.getPointerId(event.getActionIndex()) == initialPointerId) {
+                if (pointerId == initialPointerId) {
                     if (draggedPony != null) draggedPony.stopDrag();
                     
                     initialPointerId = -1;
@@ -22,22 +22,43 @@ public class Pony {
     private static final int LM_GOING = 1;
     private static final int LM_GONE = 2;
     
+    /*
+     * Ticks are the 10-millisecond intervals used by SpriteSheet timings. The
+     * state is stepped one tick at a time, however long frames are.
+     */
+    static final float SPEED_PER_TICK = 0.75f;
+    static final int TICKS_PER_WAIT_STEP = 4;
+    
     private final PonyAction[] allActions;
     private final PonyAction[] startActions;
     
     private Random random;
-    private Point targetPos;
+    private final Point targetPos = new Point();
+    private final Point scratchPos = new Point();
     private int waitTimer;
     
     private int motion;
     private int leavingMode;
     
+    /* The action being drawn. */
     private PonyAction currentAction;
-    private Point currentPos;
+    /* The action the pony has changed to, while its sprites load; until then
+       the pony holds still and currentAction is drawn. */
+    private PonyAction pendingAction;
+    private float posX;
+    private float posY;
+    /* The position before the latest step, which drawing interpolates from. */
+    private float prevX;
+    private float prevY;
+    /* How far between prevX/Y and posX/Y the pony is drawn, from 0 to 1. */
+    private float interpolation;
     private int direction;
     private int frameTime = 0;
     
-    private Rect screenBounds;
+    private final Rect screenBounds = new Rect();
+    /* The screen area covered the last time the pony was drawn. */
+    private final Rect drawnBounds = new Rect();
+    private final Rect scratchBounds = new Rect();
     
     /**
      * Creates a new {@code Pony} object.
@@ -60,69 +81,217 @@ public class Pony {
         motion = MOTION_INIT;
         leavingMode = LM_NORMAL;
         currentAction = null;
-        currentPos = null;
+        pendingAction = null;
         frameTime = 0;
+        drawnBounds.setEmpty();
         for (int i = 0; i < allActions.length; i++) {
             allActions[i].unload();
         }
     }
     
     /**
-     * Causes the state of the pony to be updated for the next frame.
+     * Releases the sprites of every action but the current one, and the one
+     * it is changing to, including those being prefetched. They are loaded
+     * again as they become reachable.
+     */
+    public void unloadIdleActions() {
+        for (int i = 0; i < allActions.length; i++) {
+            PonyAction action = allActions[i];
+            if (action != currentAction && action != pendingAction) action.unload();
+        }
+    }
+    
+    /** @return all of the actions that this pony is comprised of */
+    PonyAction[] getActions() {
+        return allActions;
+    }
+    
+    /** @return the actions that the pony can enter the screen with */
+    PonyAction[] getStartActions() {
+        return startActions;
+    }
+    
+    /**
+     * Loads the sprites for the actions that the pony can enter the screen
+     * with. This may be called on a background thread before the pony is
+     * first updated, to avoid the delay of loading them during a frame.
+     * Other actions are loaded as they become reachable.
+     */
+    public void preload() {
+        for (int i = 0; i < startActions.length; i++) {
+            startActions[i].load();
+        }
+    }
+    
+    /**
+     * Causes the state of the pony to be updated for the next frame. The state
+     * is advanced in steps of exactly one tick, so the pony behaves the same
+     * whatever the frame rate; only where it is drawn depends on the frame
+     * timing. Ticks in which a waiting or dragged pony only advances its
+     * animation are skipped over together.
      * 
-     * @param clipBounds the bounds of the screen that the pony will be
-     *                   positioned on
+     * @param clipBounds    the bounds of the screen that the pony will be
+     *                      positioned on; the pony keeps its own copy
+     * @param ticks         the number of 10-millisecond intervals that have
+     *                      passed since the previous update
+     * @param interpolation the fraction of a tick that has passed since the
+     *                      last whole one, from 0 to 1; the pony is drawn this
+     *                      far between its previous and current positions
      */
-    public void doUpdate(Rect clipBounds) {
-        screenBounds = clipBounds;
-        
-        float scale = getScale();
+    public void doUpdate(Rect clipBounds, int ticks, float interpolation) {
+        screenBounds.set(clipBounds);
+        this.interpolation = interpolation;
         
         if (motion == MOTION_INIT) {
-            for (int i = 0; i < allActions.length; i++) {
-                allActions[i].load();
-            }
-            currentPos = randomOffScreen();
+            preload();
+            randomOffScreen(scratchPos);
+            setPosition(scratchPos.x, scratchPos.y);
             changeAction(startActions[random.nextInt(startActions.length)]);
             motion = currentAction.type == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
             setRandomTarget();
         } else {
-            frameTime += 4;
-            if (frameTime >= currentAction.getAnimationTime(direction)) {
-                frameTime -= currentAction.getAnimationTime(direction);
-                switch (currentAction.type) {
-                    case PonyAction.PORT_O:
-                        moveTo(targetPos);
-                        setMoving();
-                        break;
-                        
-                    case PonyAction.PORT_I:
-                        arriveTarget();
-                        setWaiting();
-                        break;
+            float speed = SPEED_PER_TICK * getScale();
+            while (ticks > 0) {
+                if (pendingAction != null) {
+                    ticks = holdForPendingAction(ticks);
+                    continue;
+                }
+                int idle = getIdleTicks(ticks);
+                if (idle > 0) {
+                    skip(idle);
+                    ticks -= idle;
+                } else {
+                    step(speed);
+                    ticks--;
                 }
             }
-            
-            switch (motion) {
-                case MOTION_WAITING:
-                    if (waitTimer > 0) {
-                        waitTimer--;
-                    } else {
-                        setMoving();
-                        motion = currentAction.type == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
-                        setRandomTarget();
-                    }
+        }
+    }
+    
+    /**
+     * Holds the pony where it is, still animating its current action, until
+     * the sprites of the action it has changed to have been prefetched. They
+     * are never loaded here, so that the render thread does not stall on a
+     * decode; the prefetch stays queued however long it takes.
+     * 
+     * @param ticks the number of ticks to advance by
+     * @return the number of ticks left to step through after the change
+     */
+    private int holdForPendingAction(int ticks) {
+        if (!pendingAction.isLoaded()) {
+            prevX = posX;
+            prevY = posY;
+            frameTime = (frameTime + ticks) % currentAction.getAnimationTime(direction);
+            return 0;
+        }
+        showAction(pendingAction);
+        return ticks;
+    }
+    
+    /**
+     * Determines how many of the coming ticks would change nothing but the
+     * frame time and wait timer: those before the pony's wait runs out, or
+     * its special action's animation ends.
+     * 
+     * @param ticks the most ticks to count
+     * @return the number of ticks that can be skipped
+     */
+    private int getIdleTicks(int ticks) {
+        if (motion == MOTION_WAITING) {
+            ticks = Math.min(ticks, waitTimer);
+        } else if (motion != MOTION_DRAGGED) {
+            return 0;
+        }
+        if (currentAction.type != PonyAction.NORMAL) {
+            ticks = Math.min(ticks, currentAction.getAnimationTime(direction) - 1 - frameTime);
+        }
+        return Math.max(0, ticks);
+    }
+    
+    /**
+     * Advances the state of the pony by ticks that {@link #getIdleTicks} has
+     * found to be idle, as that many calls to {@link #step} would.
+     * 
+     * @param ticks the number of ticks
+     */
+    private void skip(int ticks) {
+        prevX = posX;
+        prevY = posY;
+        frameTime = (frameTime + ticks) % currentAction.getAnimationTime(direction);
+        if (motion == MOTION_WAITING) waitTimer -= ticks;
+    }
+    
+    /**
+     * Advances the state of the pony by a single tick.
+     * 
+     * @param speed the distance to move, in pixels, if moving
+     */
+    private void step(float speed) {
+        prevX = posX;
+        prevY = posY;
+        
+        frameTime++;
+        int animationTime = currentAction.getAnimationTime(direction);
+        if (frameTime >= animationTime) {
+            frameTime %= animationTime;
+            switch (currentAction.type) {
+                case PonyAction.PORT_O:
+                    moveTo(targetPos.x, targetPos.y);
+                    setMoving();
                     break;
                     
-                case MOTION_MOVING:
-                    moveTowardsTarget(3 * scale);
+                case PonyAction.PORT_I:
+                    arriveTarget();
+                    setWaiting();
                     break;
             }
         }
+        
+        switch (motion) {
+            case MOTION_WAITING:
+                if (waitTimer > 0) {
+                    waitTimer--;
+                } else {
+                    setMoving();
+                    motion = getAction().type == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
+                    setRandomTarget();
+                }
+                break;
+                
+            case MOTION_MOVING:
+                moveTowardsTarget(speed);
+                break;
+        }
     }
     
     public void drawOn(Canvas c) {
-        currentAction.drawOn(c, direction, frameTime, currentPos, getScale(), motion == MOTION_DRAGGED);
+        float scale = getScale();
+        boolean dragged = motion == MOTION_DRAGGED;
+        float x = getDrawX();
+        float y = getDrawY();
+        currentAction.drawOn(c, direction, frameTime, x, y, scale, dragged);
+        currentAction.getBounds(direction, x, y, scale, dragged, drawnBounds);
+    }
+    
+    private float getDrawX() {
+        return prevX + (posX - prevX) * interpolation;
+    }
+    
+    private float getDrawY() {
+        return prevY + (posY - prevY) * interpolation;
+    }
+    
+    /**
+     * Adds the screen area that needs to be redrawn for this pony to the given
+     * rectangle. This is the union of where the pony was last drawn and where
+     * it will be drawn next.
+     * 
+     * @param dirty the rectangle to expand
+     */
+    public void addDirtyRegion(Rect dirty) {
+        dirty.union(drawnBounds);
+        currentAction.getBounds(direction, getDrawX(), getDrawY(), getScale(), motion == MOTION_DRAGGED, scratchBounds);
+        dirty.union(scratchBounds);
     }
     
     /**
@@ -135,6 +304,15 @@ public class Pony {
         return leavingMode == LM_GONE;
     }
     
+    /**
+     * Determines whether this pony is on its way off the scene.
+     * 
+     * @return {@code true} if the pony is following an exit stage direction
+     */
+    public boolean isLeaving() {
+        return leavingMode == LM_GOING;
+    }
+    
     /**
      * Returns the y-coordinate of the pony's position. This can be used to
      * sort ponies that are higher up the screen as being further away.
@@ -142,35 +320,41 @@ public class Pony {
      * @return the screen y-coordinate
      */
     public int getY() {
-        return currentPos.y;
+        return (int)posY;
     }
     
     /**
      * Tests whether a click at the given screen point should be considered to
-     * be a click on the pony.
+     * be a click on the pony. This is so if the point is on an opaque pixel of
+     * the frame last drawn.
      * 
      * @param x the x-coordinate of the click
      * @param y the y-coordinate of the click
      * @return {@code true} iff the point is on top of this pony
      */
     public boolean testHitPoint(float x, float y) {
-        float ponySize = 30 * getScale();
-        
-        float dX = x - currentPos.x;
-        float dY = y - currentPos.y;
-        float d2 = dX * dX + dY * dY;
-        
-        return d2 < ponySize * ponySize;
+        if (currentAction == null) return false;
+        return currentAction.hitTest(direction, frameTime, getDrawX(), getDrawY(), getScale(),
+                                     motion == MOTION_DRAGGED, x, y);
+    }
+    
+    /**
+     * Calculates the area outside which {@link #testHitPoint} is always
+     * false. The pony must have been updated since it was last reset.
+     * 
+     * @param out the rectangle to store the result in
+     */
+    public void getHitBounds(Rect out) {
+        currentAction.getBounds(direction, getDrawX(), getDrawY(), getScale(), motion == MOTION_DRAGGED, out);
     }
     
     /**
      * Brings the pony into a dragged state. This means the pony will no longer
      * move on its own accord and will only move as directed with
-     * {@link #moveTo(Point)} until {@link #stopDrag()} is called.
+     * {@link #moveTo(int, int)} until {@link #stopDrag()} is called.
      */
     public void startDrag() {
         motion = MOTION_DRAGGED;
-        targetPos = null;
         leavingMode = LM_NORMAL;
         setDragged();
     }
@@ -183,72 +367,123 @@ public class Pony {
     public void stopDrag() {
         int s = (int)(30 * getScale());
         
-        if (currentPos.x < screenBounds.left + s) {
+        if (posX < screenBounds.left + s) {
             motion = MOTION_MOVING;
             leavingMode = LM_GOING;
-            targetPos = new Point(screenBounds.left - s, currentPos.y);
+            targetPos.set(screenBounds.left - s, (int)posY);
             setMoving();
-        } else if (currentPos.x >= screenBounds.right - s) {
+        } else if (posX >= screenBounds.right - s) {
             motion = MOTION_MOVING;
             leavingMode = LM_GOING;
-            targetPos = new Point(screenBounds.right + s, currentPos.y);
+            targetPos.set(screenBounds.right + s, (int)posY);
             setMoving();
         } else {
             motion = MOTION_WAITING;
-            waitTimer = 25 + random.nextInt(250);
+            waitTimer = (25 + random.nextInt(250)) * TICKS_PER_WAIT_STEP;
             setWaiting();
         }
     }
     
     /**
-     * Moves the pony to a position.
+     * Moves the pony to a position. The pony jumps there, rather than being
+     * drawn part way between its old and new positions.
      * 
-     * @param pos the new position for the pony
+     * @param x the new x-coordinate for the pony
+     * @param y the new y-coordinate for the pony
      */
-    public void moveTo(Point pos) {
-        setDirection(pos);
-        currentPos = pos;
+    public void moveTo(int x, int y) {
+        setDirection(x);
+        setPosition(x, y);
+    }
+    
+    private void setPosition(float x, float y) {
+        posX = x;
+        posY = y;
+        prevX = x;
+        prevY = y;
     }
     
     private void setWaiting() {
-        changeAction(currentAction.getNextWaiting(random));
+        changeAction(getAction().getNextWaiting(random));
     }
     
     private void setMoving() {
-        changeAction(currentAction.getNextMoving(random));
+        changeAction(getAction().getNextMoving(random));
     }
     
     private void setDragged() {
-        changeAction(currentAction.getNextDrag(random));
+        changeAction(getAction().getNextDrag(random));
+    }
+    
+    /**
+     * Returns the action the pony is performing, whether or not its sprites
+     * have loaded yet.
+     */
+    private PonyAction getAction() {
+        return pendingAction != null ? pendingAction : currentAction;
     }
     
+    /**
+     * Changes the pony's action. The change is shown at once if the sprites
+     * have been prefetched; otherwise the pony holds still until they are.
+     * 
+     * @param newAction the action to change to
+     */
     private void changeAction(PonyAction newAction) {
-        if (newAction != currentAction) {
-            currentAction = newAction;
-            frameTime = 0;
+        if (newAction == getAction()) return;
+        if (currentAction == null || newAction == currentAction || newAction.isLoaded()) {
+            showAction(newAction);
+        } else {
+            newAction.prefetch();
+            pendingAction = newAction;
+        }
+    }
+    
+    private void showAction(PonyAction action) {
+        action.load(); // Usually already done by prefetching.
+        currentAction = action;
+        pendingAction = null;
+        frameTime = 0;
+        updateResidentActions();
+    }
+    
+    /**
+     * Keeps in memory only the current action and those it can change to
+     * directly. The latter are loaded in the background, so they are usually
+     * ready by the time they are needed; the others are released to the
+     * shared sprite cache.
+     */
+    private void updateResidentActions() {
+        for (int i = 0; i < allActions.length; i++) {
+            PonyAction action = allActions[i];
+            if (action == currentAction) continue;
+            if (currentAction.leadsTo(action)) {
+                action.prefetch();
+            } else {
+                action.unload();
+            }
         }
     }
     
     private void arriveTarget() {
         motion = MOTION_WAITING;
-        targetPos = null;
-        waitTimer = 25 + random.nextInt(250);
+        waitTimer = (25 + random.nextInt(250)) * TICKS_PER_WAIT_STEP;
         if (leavingMode == LM_GOING) leavingMode = LM_GONE;
     }
     
     private void setRandomTarget() {
         if (random.nextInt(8) < 1) {
             if (motion == MOTION_MOVING) {
-                targetPos = randomOffScreenHoriz();
+                randomOffScreenHoriz(targetPos);
             } else {
-                targetPos = randomOffScreen();
+                randomOffScreen(targetPos);
             }
             leavingMode = LM_GOING;
         } else {
             if (motion == MOTION_MOVING) {
-                targetPos = randomOnScreenHoriz();
+                randomOnScreenHoriz(targetPos);
             } else {
-                targetPos = randomOnScreen();
+                randomOnScreen(targetPos);
             }
         }
     }
@@ -260,17 +495,18 @@ public class Pony {
      *              pixels/call)
      */
     private void moveTowardsTarget(float speed) {
-        setDirection(targetPos);
-        int dX = targetPos.x - currentPos.x;
-        int dY = targetPos.y - currentPos.y;
+        setDirection(targetPos.x);
+        float dX = targetPos.x - posX;
+        float dY = targetPos.y - posY;
         float f = speed / (float)Math.sqrt(dX * dX + dY * dY);
         if (f >= 1) {
-            currentPos = targetPos;
+            posX = targetPos.x;
+            posY = targetPos.y;
             arriveTarget();
             setWaiting();
         } else {
-            currentPos.x += (int)(dX * f);
-            currentPos.y += (int)(dY * f);
+            posX += dX * f;
+            posY += dY * f;
         }
     }
     
@@ -281,61 +517,59 @@ public class Pony {
     /**
      * Chooses a random point on the screen.
      * 
-     * @return the chosen point
+     * @param out the point to store the result in
      */
-    private Point randomOnScreen() {
+    private void randomOnScreen(Point out) {
         int s = (int)(30 * getScale());
-        return new Point(screenBounds.left + s + random.nextInt(screenBounds.width() - 2*s),
-                         screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
+        out.set(screenBounds.left + s + random.nextInt(screenBounds.width() - 2*s),
+                screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
     }
     
     /**
      * Chooses a random point on the screen, restricted to areas roughly
      * horizontal with the current position.
      * 
-     * @return the chosen point
+     * @param out the point to store the result in
      */
-    private Point randomOnScreenHoriz() {
-        Point newPoint = null;
+    private void randomOnScreenHoriz(Point out) {
         for (int i = 0; i < 100; i++) {
-            newPoint = randomOnScreen();
-            if (Math.abs(newPoint.y - currentPos.y) < Math.abs(newPoint.x - currentPos.x)) {
+            randomOnScreen(scratchPos);
+            if (Math.abs(scratchPos.y - posY) < Math.abs(scratchPos.x - posX)) {
                 break;
             }
         }
-        return newPoint;
+        out.set(scratchPos.x, scratchPos.y);
     }
     
     /**
      * Chooses a random point just to the side of the screen.
      * 
-     * @return the chosen point
+     * @param out the point to store the result in
      */
-    private Point randomOffScreen() {
+    private void randomOffScreen(Point out) {
         int s = (int)(30 * getScale());
-        return new Point(random.nextBoolean() ? screenBounds.left - s : screenBounds.right + s,
-                         screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
+        out.set(random.nextBoolean() ? screenBounds.left - s : screenBounds.right + s,
+                screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s));
     }
     
     /**
      * Chooses a random point just to the side of the screen, restricted to
      * areas roughly horizontal with the current position.
      * 
-     * @return the chosen point
+     * @param out the point to store the result in
      */
-    private Point randomOffScreenHoriz() {
-        Point newPoint = null;
+    private void randomOffScreenHoriz(Point out) {
         for (int i = 0; i < 100; i++) {
-            newPoint = randomOffScreen();
-            if (Math.abs(newPoint.y - currentPos.y) < Math.abs(newPoint.x - currentPos.x)) {
+            randomOffScreen(scratchPos);
+            if (Math.abs(scratchPos.y - posY) < Math.abs(scratchPos.x - posX)) {
                 break;
             }
         }
-        return newPoint;
+        out.set(scratchPos.x, scratchPos.y);
     }
     
-    private void setDirection(Point targetPos) {
-        int dX = targetPos.x - currentPos.x;
+    private void setDirection(int targetX) {
+        float dX = targetX - posX;
         if (dX > 0 && direction != PonyAction.RIGHT) {
             direction = PonyAction.RIGHT;
             frameTime = 0;
@@ -1,12 +1,10 @@
 package uk.cpjsmith.ponypaper;
 
 import android.content.res.Resources;
-import android.content.res.TypedArray;
 import android.graphics.Canvas;
-import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.util.Base64;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -49,61 +47,104 @@ public class PonyAction {
     
     /* To create the sprite sheets for a built-in pony. */
     private Resources res;
-    private int arrayId;
+    private int builtIn;
     /* To create the sprite sheets for a custom pony. */
     private PonyDefinition.Action definition;
+    /* To create the sprite sheets for a pony from a pack. */
+    private PonyPack pack;
+    private PonyPack.Action packAction;
     
-    private SpriteSheet[] sprites;
+    /* Written under the object's lock, but read by drawing without it. */
+    private volatile SpriteSheet[] sprites;
+    /* Whether a queued prefetch should still go ahead when it runs. */
+    private boolean prefetchWanted = false;
+    private final Runnable prefetchTask = new Runnable() {
+        public void run() {
+            synchronized (PonyAction.this) {
+                if (prefetchWanted) load();
+            }
+        }
+    };
+    /* The keys of the sprites in the shared cache. */
+    private SpriteCache.Key[] spriteKeys;
+    
+    /* Reused by drawOn() so that drawing allocates nothing. */
+    private final Rect srcRect = new Rect();
+    private final RectF dstRect = new RectF();
     
     private PonyAction[] nextWaiting;
     private PonyAction[] nextMoving;
     private PonyAction[] nextDrag;
     
     /**
-     * Constructs an action of type {@code NORMAL}.
-     * 
-     * @param res     the {@code Resources} object to load from
-     * @param arrayId the ID of the action's main array resource
-     * @see #PonyAction(Resources, int, int)
-     */
-    public PonyAction(Resources res, int arrayId) {
-        this(res, arrayId, NORMAL);
-    }
-    
-    /**
-     * Constructs an action of the given type. The {@code arrayId} parameter
-     * should be the ID of an array resource containing 4 other resources - the
-     * drawable for leftwards motion, the array of frame times for leftwards
-     * motion, the drawable for rightwards motion and the array of frame times
-     * for rightwards motion, respectively.
+     * Constructs a built-in action. Its type, drawables and frame times are
+     * taken from the generated {@link BuiltInPonies} table, so nothing is
+     * read from {@code res} until the sprites are loaded.
      * 
      * @param res     the {@code Resources} object to load from
-     * @param arrayId the ID of the action's main array resource
-     * @param type    the type of action
+     * @param builtIn the index of the action in the {@code BuiltInPonies}
+     *                table
      */
-    public PonyAction(Resources res, int arrayId, int type) {
+    public PonyAction(Resources res, int builtIn) {
         this.res = res;
-        this.arrayId = arrayId;
-        this.type = type;
+        this.builtIn = builtIn;
+        this.type = BuiltInPonies.TYPE[builtIn];
+        spriteKeys = new SpriteCache.Key[] {
+            SpriteCache.resourceKey(BuiltInPonies.DRAWABLE[2 * builtIn + LEFT], 2 * builtIn + LEFT),
+            SpriteCache.resourceKey(BuiltInPonies.DRAWABLE[2 * builtIn + RIGHT], 2 * builtIn + RIGHT)
+        };
     }
     
     /**
      * Constructs an action.
      * 
      * @param definition the action definition extracted from XML
+     * @throws IllegalArgumentException if either image is invalid
      */
     public PonyAction(PonyDefinition.Action definition) {
         this.definition = definition;
-        if (definition.specialType.equals("teleport-out")) {
-            this.type = PORT_O;
-        } else if (definition.specialType.equals("teleport-in")) {
-            this.type = PORT_I;
+        this.type = parseType(definition.specialType);
+        spriteKeys = new SpriteCache.Key[] {
+            SpriteCache.customKey(definition.images.get("left"), definition.timings.get("left")),
+            SpriteCache.customKey(definition.images.get("right"), definition.timings.get("right"))
+        };
+        // Test the images, without decoding them in full. Definitions are
+        // only read directly if they could not be compiled into a pack.
+        SpriteSheet.validate(definition.images.get("left"), parseInts(definition.timings.get("left")));
+        SpriteSheet.validate(definition.images.get("right"), parseInts(definition.timings.get("right")));
+    }
+    
+    /**
+     * Constructs an action from a pony pack. The pack's images are read only
+     * when the sprites are loaded.
+     * 
+     * @param pack   the pack containing the action
+     * @param action the action's entry in the pack
+     * @throws IllegalArgumentException if either image is invalid
+     */
+    public PonyAction(PonyPack pack, PonyPack.Action action) {
+        this.pack = pack;
+        this.packAction = action;
+        this.type = parseType(action.specialType);
+        spriteKeys = new SpriteCache.Key[] {
+            SpriteCache.packKey(pack, action.images[LEFT], action.timings[LEFT]),
+            SpriteCache.packKey(pack, action.images[RIGHT], action.timings[RIGHT])
+        };
+        // Test the images, reading only their headers.
+        for (int dir = 0; dir < 2; dir++) {
+            int blob = action.images[dir];
+            SpriteSheet.validate(pack.getBlob(blob), action.timings[dir], pack.getBlobSource(blob));
+        }
+    }
+    
+    private static int parseType(String specialType) {
+        if (specialType.equals("teleport-out")) {
+            return PORT_O;
+        } else if (specialType.equals("teleport-in")) {
+            return PORT_I;
         } else {
-            this.type = NORMAL;
+            return NORMAL;
         }
-        // Test the images.
-        load();
-        unload();
     }
     
     private static int[] parseInts(String value) {
@@ -118,64 +159,194 @@ public class PonyAction {
     /**
      * Load the sprites into memory. After this is called, all the methods of
      * this class become functional. It will also consume far more memory.
+     * Sprites are taken from the shared {@link SpriteCache} where possible,
+     * and pinned there until {@link #unload()} is called.
      * 
      * @see #unload()
      */
-    public void load() {
+    public synchronized void load() {
+        if (sprites != null) return;
+        
+        SpriteCache cache = SpriteCache.getInstance();
         if (res != null) {
-            TypedArray array = res.obtainTypedArray(arrayId);
-            
-            int leftDrawableId = array.getResourceId(0, 0);
-            int leftTimingId = array.getResourceId(1, 0);
-            int rightDrawableId = array.getResourceId(2, 0);
-            int rightTimingId = array.getResourceId(3, 0);
-            
-            sprites = new SpriteSheet[] {
-                new SpriteSheet(res, leftDrawableId, leftTimingId),
-                new SpriteSheet(res, rightDrawableId, rightTimingId)
-            };
-            
-            array.recycle();
+            SpriteSheet[] loaded = new SpriteSheet[2];
+            try {
+                for (int dir = 0; dir < 2; dir++) {
+                    loaded[dir] = cache.acquire(spriteKeys[dir]);
+                    if (loaded[dir] == null) {
+                        int slot = 2 * builtIn + dir;
+                        int[] frameTimes = Arrays.copyOfRange(BuiltInPonies.FRAME_TIMES,
+                                                              BuiltInPonies.FIRST_FRAME[slot],
+                                                              BuiltInPonies.FIRST_FRAME[slot + 1]);
+                        SpriteSheet sheet = new SpriteSheet(res, BuiltInPonies.DRAWABLE[slot], frameTimes);
+                        loaded[dir] = cache.add(spriteKeys[dir], sheet);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Don't leave the successfully loaded direction pinned.
+                if (loaded[LEFT] != null) cache.release(spriteKeys[LEFT]);
+                throw e;
+            }
+            sprites = loaded;
+            prefetchWanted = false;
         } else if (definition != null) {
-            sprites = new SpriteSheet[] {
-                new SpriteSheet(Base64.decode(definition.images.get("left"), 0),
-                                parseInts(definition.timings.get("left"))),
-                new SpriteSheet(Base64.decode(definition.images.get("right"), 0),
-                                parseInts(definition.timings.get("right")))
-            };
+            final String[] directions = {"left", "right"};
+            
+            SpriteSheet[] loaded = new SpriteSheet[2];
+            try {
+                for (int dir = 0; dir < 2; dir++) {
+                    loaded[dir] = cache.acquire(spriteKeys[dir]);
+                    if (loaded[dir] == null) {
+                        SpriteSheet sheet = new SpriteSheet(definition.images.get(directions[dir]),
+                                                            parseInts(definition.timings.get(directions[dir])));
+                        loaded[dir] = cache.add(spriteKeys[dir], sheet);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Don't leave the successfully loaded direction pinned.
+                if (loaded[LEFT] != null) cache.release(spriteKeys[LEFT]);
+                throw e;
+            }
+            sprites = loaded;
+            prefetchWanted = false;
+        } else if (pack != null) {
+            SpriteSheet[] loaded = new SpriteSheet[2];
+            try {
+                for (int dir = 0; dir < 2; dir++) {
+                    loaded[dir] = cache.acquire(spriteKeys[dir]);
+                    if (loaded[dir] == null) {
+                        SpriteSheet sheet = new SpriteSheet(pack.getBlob(packAction.images[dir]), packAction.timings[dir]);
+                        loaded[dir] = cache.add(spriteKeys[dir], sheet);
+                    }
+                }
+            } catch (RuntimeException e) {
+                if (loaded[LEFT] != null) cache.release(spriteKeys[LEFT]);
+                throw e;
+            }
+            sprites = loaded;
+            prefetchWanted = false;
         }
     }
     
     /**
      * Unload the sprites from memory. This will release the memory consumed by
-     * the images, but some methods of this class will cease to function.
+     * the images, but some methods of this class will cease to function. The
+     * sprites remain in the shared {@link SpriteCache} until evicted.
      * 
      * @see #load()
      */
-    public void unload() {
+    public synchronized void unload() {
+        prefetchWanted = false;
+        if (sprites == null) return;
+        
+        SpriteCache cache = SpriteCache.getInstance();
+        for (int dir = 0; dir < sprites.length; dir++) {
+            cache.release(spriteKeys[dir]);
+        }
         sprites = null;
     }
     
+    /**
+     * Starts loading the sprites in the background, if they are not already
+     * loaded. A later call to {@link #unload()} cancels the prefetch if it has
+     * not yet run; a call to {@link #load()} waits for it if it is running.
+     */
+    public synchronized void prefetch() {
+        if (sprites != null || prefetchWanted) return;
+        prefetchWanted = true;
+        SpriteLoader.submit(prefetchTask);
+    }
+    
+    /**
+     * Determines whether the sprites are in memory, so that the methods that
+     * draw or measure this action can be used.
+     * 
+     * @return {@code true} iff the sprites are loaded
+     */
+    public boolean isLoaded() {
+        return sprites != null;
+    }
+    
+    /**
+     * Determines whether a pony performing this action can change directly to
+     * the given action.
+     * 
+     * @param action the potential next action
+     * @return {@code true} iff {@code action} is one of this action's next
+     *         waiting, moving or drag actions
+     */
+    public boolean leadsTo(PonyAction action) {
+        return contains(nextWaiting, action) || contains(nextMoving, action) || contains(nextDrag, action);
+    }
+    
+    private static boolean contains(PonyAction[] actions, PonyAction action) {
+        for (int i = 0; i < actions.length; i++) {
+            if (actions[i] == action) return true;
+        }
+        return false;
+    }
+    
     public int getAnimationTime(int dir) {
         return sprites[dir].totalTime;
     }
     
-    public void drawOn(Canvas c, int dir, int time, Point p, float scale, boolean dragged) {
+    public void drawOn(Canvas c, int dir, int time, float x, float y, float scale, boolean dragged) {
         SpriteSheet sprite = sprites[dir];
-        
+        setDestination(sprite, x, y, scale, dragged);
+        sprite.getRect(time, srcRect);
+        c.drawBitmap(sprite.bitmap, srcRect, dstRect, null);
+    }
+    
+    /**
+     * Calculates the screen area that {@link #drawOn} would cover with the
+     * same parameters.
+     * 
+     * @param dir     the direction the pony is facing
+     * @param x       the x-coordinate of the pony
+     * @param y       the y-coordinate of the pony
+     * @param scale   the scale factor the pony is drawn at
+     * @param dragged whether the pony is being dragged
+     * @param out     the rectangle to store the (rounded out) result in
+     */
+    public void getBounds(int dir, float x, float y, float scale, boolean dragged, Rect out) {
+        setDestination(sprites[dir], x, y, scale, dragged);
+        dstRect.roundOut(out);
+    }
+    
+    /**
+     * Tests whether a point is on an opaque pixel of the frame that {@link
+     * #drawOn} would draw with the same parameters.
+     * 
+     * @param dir     the direction the pony is facing
+     * @param time    the time into the animation
+     * @param x       the x-coordinate of the pony
+     * @param y       the y-coordinate of the pony
+     * @param scale   the scale factor the pony is drawn at
+     * @param dragged whether the pony is being dragged
+     * @param pX      the x-coordinate of the point
+     * @param pY      the y-coordinate of the point
+     * @return {@code true} iff the point is on the pony
+     */
+    public boolean hitTest(int dir, int time, float x, float y, float scale, boolean dragged, float pX, float pY) {
+        SpriteSheet sprite = sprites[dir];
+        setDestination(sprite, x, y, scale, dragged);
+        if (!dstRect.contains(pX, pY)) return false;
+        int frameX = (int)((pX - dstRect.left) / scale);
+        int frameY = (int)((pY - dstRect.top) / scale);
+        return sprite.isOpaqueAt(sprite.getFrameIndex(time), frameX, frameY);
+    }
+    
+    private void setDestination(SpriteSheet sprite, float x, float y, float scale, boolean dragged) {
         int sW = sprite.frameWidth;
         int sH = sprite.frameHeight;
         float dW = sW * scale;
         float dH = sH * scale;
         
         if (dragged) {
-            p = new Point(p);
-            p.y -= dH/2 + 20 * scale;
+            y = (int)(y - (dH/2 + 20 * scale));
         }
         
-        RectF dstRect = new RectF(p.x - dW/2, p.y - dH/2, p.x + dW/2, p.y + dH/2);
-        
-        c.drawBitmap(sprite.bitmap, sprite.getRect(time), dstRect, null);
+        dstRect.set(x - dW/2, y - dH/2, x + dW/2, y + dH/2);
     }
     
     public void setNextWaiting(PonyAction[] states) {
@@ -190,6 +361,15 @@ public class PonyAction {
         nextDrag = states;
     }
     
+    /**
+     * Returns every action this one can change to directly.
+     * 
+     * @return the next waiting, moving and drag actions, in that order
+     */
+    PonyAction[][] getNextActions() {
+        return new PonyAction[][] {nextWaiting, nextMoving, nextDrag};
+    }
+    
     public PonyAction getNextWaiting(Random random) {
         return nextWaiting[random.nextInt(nextWaiting.length)];
     }
@@ -0,0 +1,682 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.view.MotionEvent;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates a crowd of hundreds of ponies, for large screens. Where {@link
+ * Ponies} keeps a {@link Pony} object for each pony on screen, a crowd keeps
+ * the state of all its ponies in parallel arrays of primitives, indexed by
+ * pony. The behaviour of each pony is that of {@link Pony#doUpdate}, except
+ * that one which leaves the screen is replaced straight away by another chosen
+ * at random.
+ * <p>
+ * Ponies are not stepped every tick. Each keeps the tick its animation started
+ * and, when moving, a straight path from which its position at any tick can be
+ * worked out, and is woken from a {@link TickQueue} only when something is
+ * due: its wait ends, its special action's animation finishes, or it reaches
+ * its target. An update therefore costs time in proportion to the ponies that
+ * change state, apart from sorting and filing them for drawing and touches.
+ * <p>
+ * The ponies given to the crowd serve only as species. Their action graphs
+ * are flattened into tables of action indices shared by every member of the
+ * crowd, and the sprites of every action are loaded once, up front, so a
+ * crowd of a thousand needs no more sprite memory than one of each species.
+ * Under memory pressure, {@link #trimMemory} releases the actions no member
+ * is performing; a pony that changes to one is not drawn until it has been
+ * loaded again in the background.
+ * <p>
+ * The constructor and {@link #release} may be called on any thread, such as
+ * the {@link SpriteLoader}'s, as long as the crowd is not in use; all other
+ * methods must be called on the render thread.
+ */
+public class PonyCrowd {
+    
+    private static final int MOTION_INIT = 0;
+    private static final int MOTION_WAITING = 1;
+    private static final int MOTION_MOVING = 2;
+    private static final int MOTION_DRAGGED = 3;
+    private static final int MOTION_SPECIAL = 4;
+    
+    private static final int LM_NORMAL = 0;
+    private static final int LM_GOING = 1;
+    private static final int LM_GONE = 2;
+    
+    /* The transition lists of an action, in the order of getNextActions(). */
+    private static final int NEXT_WAITING = 0;
+    private static final int NEXT_MOVING = 1;
+    private static final int NEXT_DRAG = 2;
+    
+    /* Every action of every species. */
+    private final PonyAction[] actions;
+    private final int[] actionType;
+    /* The length of each action's animation, by 2 * action + direction. */
+    private final int[] animationTime;
+    /* The transition lists, by 3 * action + NEXT_*, as ranges of next. */
+    private final int[] firstNext;
+    private final int[] next;
+    /* The start actions of each species, as ranges of start. */
+    private final int[] firstStart;
+    private final int[] start;
+    
+    /* The state of each pony, as in Pony. */
+    private final int size;
+    private final int[] targetX;
+    private final int[] targetY;
+    private final int[] motion;
+    private final int[] leavingMode;
+    private final int[] action;
+    private final int[] direction;
+    /* The tick at which the current animation was at frame time 0. */
+    private final int[] actionStart;
+    /* The tick at which a waiting pony sets off again. */
+    private final int[] waitEnd;
+    /* The path of each pony: it is at from until pathStart, then moves by vel
+       each tick until it reaches to, pathTicks ticks later. A pony standing
+       still has a path of no ticks. */
+    private final float[] fromX;
+    private final float[] fromY;
+    private final float[] toX;
+    private final float[] toY;
+    private final float[] velX;
+    private final float[] velY;
+    private final int[] pathStart;
+    private final int[] pathTicks;
+    
+    /* The ponies with something due, by the tick it is due. */
+    private final TickQueue wakeQueue;
+    /* The current tick, which may wrap around. */
+    private int now = 0;
+    /* The number of times a pony has been taken from the wake queue. */
+    private int wakeCount = 0;
+    /* Set when every pony is to enter on the next update. */
+    private boolean entering = true;
+    
+    private final DepthOrder depthOrder;
+    /* The hit bounds of the ponies, as of the last update. */
+    private final HitGrid hitGrid;
+    private final Rect hitBounds = new Rect();
+    private final HitGrid.Test hitTest = new HitGrid.Test() {
+        public boolean hits(int i, float x, float y) {
+            return actions[action[i]].isLoaded() && actions[action[i]].hitTest(direction[i], getFrameTime(i), getDrawX(i), getDrawY(i), scale,
+                                              motion[i] == MOTION_DRAGGED, x, y);
+        }
+    };
+    
+    private final Random random = new Random();
+    private final Rect screenBounds = new Rect();
+    private float scale;
+    private float interpolation;
+    /* The result of randomOnScreen() and randomOffScreen(). */
+    private int scratchX;
+    private int scratchY;
+    
+    private int initialPointerId = -1;
+    private int draggedPony = -1;
+    
+    /**
+     * Creates a crowd, loading the sprites of every action of the given
+     * species. This takes as long as loading them all, so should not be done
+     * on the render thread.
+     * 
+     * @param species the ponies whose actions the crowd is made from; each
+     *                member of the crowd is one of these, chosen at random
+     * @param size    the number of ponies in the crowd
+     */
+    public PonyCrowd(List<Pony> species, int size) {
+        IdentityHashMap<PonyAction, Integer> indices = new IdentityHashMap<PonyAction, Integer>();
+        ArrayList<PonyAction> all = new ArrayList<PonyAction>();
+        int startCount = 0;
+        for (Pony pony : species) {
+            for (PonyAction a : pony.getActions()) {
+                if (!indices.containsKey(a)) {
+                    indices.put(a, all.size());
+                    all.add(a);
+                }
+            }
+            startCount += pony.getStartActions().length;
+        }
+        
+        actions = all.toArray(new PonyAction[all.size()]);
+        actionType = new int[actions.length];
+        animationTime = new int[2 * actions.length];
+        firstNext = new int[3 * actions.length + 1];
+        int nextCount = 0;
+        for (PonyAction a : actions) {
+            for (PonyAction[] list : a.getNextActions()) {
+                nextCount += list.length;
+            }
+        }
+        next = new int[nextCount];
+        
+        int k = 0;
+        for (int a = 0; a < actions.length; a++) {
+            actions[a].load();
+            actionType[a] = actions[a].type;
+            animationTime[2 * a + PonyAction.LEFT] = actions[a].getAnimationTime(PonyAction.LEFT);
+            animationTime[2 * a + PonyAction.RIGHT] = actions[a].getAnimationTime(PonyAction.RIGHT);
+            PonyAction[][] lists = actions[a].getNextActions();
+            for (int t = 0; t < lists.length; t++) {
+                firstNext[3 * a + t] = k;
+                for (PonyAction n : lists[t]) {
+                    next[k++] = indices.get(n);
+                }
+            }
+        }
+        firstNext[3 * actions.length] = k;
+        
+        firstStart = new int[species.size() + 1];
+        start = new int[startCount];
+        k = 0;
+        for (int s = 0; s < species.size(); s++) {
+            firstStart[s] = k;
+            for (PonyAction a : species.get(s).getStartActions()) {
+                start[k++] = indices.get(a);
+            }
+        }
+        firstStart[species.size()] = k;
+        
+        this.size = species.isEmpty() ? 0 : size;
+        targetX = new int[this.size];
+        targetY = new int[this.size];
+        motion = new int[this.size];
+        leavingMode = new int[this.size];
+        action = new int[this.size];
+        direction = new int[this.size];
+        actionStart = new int[this.size];
+        waitEnd = new int[this.size];
+        fromX = new float[this.size];
+        fromY = new float[this.size];
+        toX = new float[this.size];
+        toY = new float[this.size];
+        velX = new float[this.size];
+        velY = new float[this.size];
+        pathStart = new int[this.size];
+        pathTicks = new int[this.size];
+        wakeQueue = new TickQueue(this.size);
+        depthOrder = new DepthOrder(this.size);
+        hitGrid = new HitGrid(this.size);
+        for (int i = 0; i < this.size; i++) {
+            direction[i] = random.nextBoolean() ? PonyAction.LEFT : PonyAction.RIGHT;
+        }
+    }
+    
+    /**
+     * Returns the number of ponies in the crowd.
+     * 
+     * @return the number of ponies, or 0 if there were no species
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the number of times a pony has been woken because something
+     * was due, which is what the cost of an update mostly depends on.
+     * 
+     * @return the number of wakeups since the crowd was made
+     */
+    public int wakeCount() {
+        return wakeCount;
+    }
+    
+    /**
+     * Sends every pony off the screen, to enter again on the next update.
+     */
+    public void reset() {
+        for (int i = 0; i < size; i++) {
+            motion[i] = MOTION_INIT;
+        }
+        wakeQueue.clear();
+        entering = true;
+        hitGrid.clear();
+        draggedPony = -1;
+        initialPointerId = -1;
+    }
+    
+    /**
+     * Releases the sprites of every action. This should be called when this
+     * object is about to be discarded.
+     */
+    public void release() {
+        for (int i = 0; i < actions.length; i++) {
+            actions[i].unload();
+        }
+    }
+    
+    /**
+     * Releases the sprites of the actions that no member of the crowd is
+     * performing. They are loaded again in the background when needed.
+     */
+    public void trimMemory() {
+        boolean[] used = new boolean[actions.length];
+        for (int i = 0; i < size; i++) {
+            used[action[i]] = true;
+        }
+        for (int a = 0; a < actions.length; a++) {
+            if (!used[a]) actions[a].unload();
+        }
+    }
+    
+    /**
+     * Advances every pony by the given time. Ponies which have not yet
+     * entered the screen enter at a random edge first.
+     * 
+     * @param bounds        the bounds of the screen
+     * @param ticks         the number of 10-millisecond intervals that have
+     *                      passed since the previous frame
+     * @param interpolation the fraction of a tick that has passed since the
+     *                      last whole one
+     * @see Pony#doUpdate(Rect, int, float)
+     */
+    public void update(Rect bounds, int ticks, float interpolation) {
+        screenBounds.set(bounds);
+        scale = Math.min(bounds.width(), bounds.height()) / 200.0f;
+        this.interpolation = interpolation;
+        
+        if (entering) {
+            for (int i = 0; i < size; i++) {
+                enter(i);
+            }
+            entering = false;
+        }
+        
+        // Wake the ponies with something due by the end of this frame, in
+        // the order it is due; the rest need nothing done.
+        int end = now + ticks;
+        while (!wakeQueue.isEmpty() && wakeQueue.peekTick() - end <= 0) {
+            now = wakeQueue.peekTick();
+            wake(wakeQueue.poll());
+            wakeCount++;
+        }
+        now = end;
+        sortByY();
+        updateHitGrid(bounds);
+    }
+    
+    /**
+     * Files each pony in the hit grid under its new position. Only ponies
+     * which have moved to another cell are relinked, so this is cheap even
+     * for large crowds.
+     */
+    private void updateHitGrid(Rect bounds) {
+        hitGrid.setArea(bounds, Ponies.getCellSize(bounds));
+        for (int i = 0; i < size; i++) {
+            PonyAction a = actions[action[i]];
+            if (!a.isLoaded()) {
+                hitGrid.remove(i);
+                continue;
+            }
+            a.getBounds(direction[i], getDrawX(i), getDrawY(i), scale, motion[i] == MOTION_DRAGGED, hitBounds);
+            hitGrid.put(i, hitBounds.left, hitBounds.top, hitBounds.right, hitBounds.bottom);
+        }
+    }
+    
+    private void enter(int i) {
+        int s = random.nextInt(firstStart.length - 1);
+        randomOffScreen();
+        setPosition(i, scratchX, scratchY);
+        int from = firstStart[s];
+        setAction(i, start[from + random.nextInt(firstStart[s + 1] - from)]);
+        leavingMode[i] = LM_NORMAL;
+        motion[i] = actionType[action[i]] == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
+        setRandomTarget(i);
+        if (motion[i] == MOTION_MOVING) startPath(i);
+        depthOrder.renew(i);
+        schedule(i);
+    }
+    
+    /**
+     * Brings a pony up to the current tick, at which something is due to
+     * happen to it, and schedules it to be woken again. This does what
+     * {@link Pony#doUpdate} would do at the same tick.
+     * 
+     * @param i the index of the pony
+     */
+    private void wake(int i) {
+        int a = action[i];
+        int elapsed = now - actionStart[i];
+        if (actionType[a] != PonyAction.NORMAL && elapsed > 0
+                && elapsed % animationTime[2 * a + direction[i]] == 0) {
+            switch (actionType[a]) {
+                case PonyAction.PORT_O:
+                    moveTo(i, targetX[i], targetY[i]);
+                    changeAction(i, NEXT_MOVING);
+                    break;
+                    
+                case PonyAction.PORT_I:
+                    arriveTarget(i);
+                    // The wait counts down from this tick, not the next.
+                    waitEnd[i]--;
+                    changeAction(i, NEXT_WAITING);
+                    if (leavingMode[i] == LM_GONE) {
+                        enter(i);
+                        return;
+                    }
+                    break;
+            }
+        }
+        
+        switch (motion[i]) {
+            case MOTION_WAITING:
+                if (now - waitEnd[i] >= 0) {
+                    changeAction(i, NEXT_MOVING);
+                    motion[i] = actionType[action[i]] == PonyAction.NORMAL ? MOTION_MOVING : MOTION_SPECIAL;
+                    setRandomTarget(i);
+                    if (motion[i] == MOTION_MOVING) startPath(i);
+                }
+                break;
+                
+            case MOTION_MOVING:
+                if (now - (pathStart[i] + pathTicks[i]) >= 0) {
+                    arriveTarget(i);
+                    changeAction(i, NEXT_WAITING);
+                    if (leavingMode[i] == LM_GONE) {
+                        enter(i);
+                        return;
+                    }
+                }
+                break;
+        }
+        schedule(i);
+    }
+    
+    /**
+     * Queues a pony to be woken at the next tick at which something is due to
+     * happen to it, if anything is.
+     * 
+     * @param i the index of the pony
+     */
+    private void schedule(int i) {
+        boolean due = false;
+        int tick = 0;
+        
+        int a = action[i];
+        if (actionType[a] != PonyAction.NORMAL) {
+            int length = animationTime[2 * a + direction[i]];
+            tick = actionStart[i] + ((now - actionStart[i]) / length + 1) * length;
+            due = true;
+        }
+        if (motion[i] == MOTION_WAITING) {
+            tick = due ? earlier(tick, waitEnd[i]) : waitEnd[i];
+            due = true;
+        } else if (motion[i] == MOTION_MOVING) {
+            int arrival = pathStart[i] + pathTicks[i];
+            tick = due ? earlier(tick, arrival) : arrival;
+            due = true;
+        }
+        
+        if (due) {
+            wakeQueue.schedule(i, tick);
+        } else {
+            wakeQueue.cancel(i);
+        }
+    }
+    
+    private static int earlier(int a, int b) {
+        return b - a < 0 ? b : a;
+    }
+    
+    private void changeAction(int i, int list) {
+        int a = action[i];
+        int from = firstNext[3 * a + list];
+        int newAction = next[from + random.nextInt(firstNext[3 * a + list + 1] - from)];
+        if (newAction != a) setAction(i, newAction);
+    }
+    
+    private void setAction(int i, int a) {
+        action[i] = a;
+        actionStart[i] = now;
+        // Only after trimMemory() can an action be missing.
+        if (!actions[a].isLoaded()) actions[a].prefetch();
+    }
+    
+    private void arriveTarget(int i) {
+        motion[i] = MOTION_WAITING;
+        // Pony counts the wait down from the tick after it arrives.
+        waitEnd[i] = now + (25 + random.nextInt(250)) * Pony.TICKS_PER_WAIT_STEP + 1;
+        if (leavingMode[i] == LM_GOING) leavingMode[i] = LM_GONE;
+    }
+    
+    private void setRandomTarget(int i) {
+        boolean leaving = random.nextInt(8) < 1;
+        float x = getX(i);
+        float y = getY(i);
+        // Moving ponies keep roughly horizontal, as in Pony.
+        int tries = motion[i] == MOTION_MOVING ? 100 : 1;
+        for (int k = 0; k < tries; k++) {
+            if (leaving) {
+                randomOffScreen();
+            } else {
+                randomOnScreen();
+            }
+            if (Math.abs(scratchY - y) < Math.abs(scratchX - x)) break;
+        }
+        targetX[i] = scratchX;
+        targetY[i] = scratchY;
+        if (leaving) leavingMode[i] = LM_GOING;
+    }
+    
+    /**
+     * Sets a pony off from where it is now towards its target, at the speed
+     * Pony moves. It arrives on the tick on which Pony would, having covered
+     * the last part of the distance, however short, in one step.
+     * 
+     * @param i the index of the pony
+     */
+    private void startPath(int i) {
+        float x = getX(i);
+        float y = getY(i);
+        setDirection(i, targetX[i]);
+        float dX = targetX[i] - x;
+        float dY = targetY[i] - y;
+        float distance = (float)Math.sqrt(dX * dX + dY * dY);
+        float speed = Pony.SPEED_PER_TICK * scale;
+        
+        fromX[i] = x;
+        fromY[i] = y;
+        toX[i] = targetX[i];
+        toY[i] = targetY[i];
+        velX[i] = distance > 0 ? dX * speed / distance : 0;
+        velY[i] = distance > 0 ? dY * speed / distance : 0;
+        pathStart[i] = now;
+        pathTicks[i] = Math.max(1, (int)Math.ceil(distance / speed));
+    }
+    
+    private void moveTo(int i, int x, int y) {
+        setDirection(i, x);
+        setPosition(i, x, y);
+    }
+    
+    /* Places a pony at a point from the current tick on, so that it is drawn
+       there straight away rather than sliding there. */
+    private void setPosition(int i, float x, float y) {
+        fromX[i] = x;
+        fromY[i] = y;
+        toX[i] = x;
+        toY[i] = y;
+        velX[i] = 0;
+        velY[i] = 0;
+        pathStart[i] = now;
+        pathTicks[i] = 0;
+    }
+    
+    private void setDirection(int i, int targetX) {
+        float dX = targetX - getX(i);
+        if (dX > 0 && direction[i] != PonyAction.RIGHT) {
+            direction[i] = PonyAction.RIGHT;
+            actionStart[i] = now;
+        }
+        if (dX < 0 && direction[i] != PonyAction.LEFT) {
+            direction[i] = PonyAction.LEFT;
+            actionStart[i] = now;
+        }
+    }
+    
+    /**
+     * Works out where a pony is along its path.
+     * 
+     * @param i the index of the pony
+     * @param t the time since the path started, in ticks; may be fractional
+     * @return the x-coordinate of the pony
+     */
+    private float pathX(int i, float t) {
+        if (t <= 0) return fromX[i];
+        if (t >= pathTicks[i]) return toX[i];
+        float last = pathTicks[i] - 1;
+        if (t <= last) return fromX[i] + velX[i] * t;
+        // The last step is shorter, ending exactly on the target.
+        float x = fromX[i] + velX[i] * last;
+        return x + (toX[i] - x) * (t - last);
+    }
+    
+    /* As pathX(), for the y-coordinate. */
+    private float pathY(int i, float t) {
+        if (t <= 0) return fromY[i];
+        if (t >= pathTicks[i]) return toY[i];
+        float last = pathTicks[i] - 1;
+        if (t <= last) return fromY[i] + velY[i] * t;
+        float y = fromY[i] + velY[i] * last;
+        return y + (toY[i] - y) * (t - last);
+    }
+    
+    private float getX(int i) {
+        return pathX(i, now - pathStart[i]);
+    }
+    
+    private float getY(int i) {
+        return pathY(i, now - pathStart[i]);
+    }
+    
+    private int getFrameTime(int i) {
+        return (now - actionStart[i]) % animationTime[2 * action[i] + direction[i]];
+    }
+    
+    private void randomOnScreen() {
+        int s = (int)(30 * scale);
+        scratchX = screenBounds.left + s + random.nextInt(screenBounds.width() - 2*s);
+        scratchY = screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s);
+    }
+    
+    private void randomOffScreen() {
+        int s = (int)(30 * scale);
+        scratchX = random.nextBoolean() ? screenBounds.left - s : screenBounds.right + s;
+        scratchY = screenBounds.top + s + random.nextInt(screenBounds.height() - 2*s);
+    }
+    
+    private void sortByY() {
+        for (int i = 0; i < size; i++) {
+            depthOrder.setY(i, (int)getY(i));
+        }
+        depthOrder.sort();
+    }
+    
+    /**
+     * Draws every pony on the given canvas, furthest away first.
+     * 
+     * @param c the canvas to draw on
+     */
+    public void draw(Canvas c) {
+        for (int k = 0; k < size; k++) {
+            int i = depthOrder.get(k);
+            PonyAction a = actions[action[i]];
+            if (a.isLoaded()) {
+                a.drawOn(c, direction[i], getFrameTime(i), getDrawX(i), getDrawY(i), scale, motion[i] == MOTION_DRAGGED);
+            }
+        }
+    }
+    
+    /* Ponies are drawn between where they were at the previous tick and
+       where they are now, as with Pony.getDrawX(). */
+    private float getDrawX(int i) {
+        return pathX(i, now - 1 - pathStart[i] + interpolation);
+    }
+    
+    private float getDrawY(int i) {
+        return pathY(i, now - 1 - pathStart[i] + interpolation);
+    }
+    
+    private void startDrag(int i) {
+        motion[i] = MOTION_DRAGGED;
+        leavingMode[i] = LM_NORMAL;
+        changeAction(i, NEXT_DRAG);
+        setPosition(i, getX(i), getY(i));
+        schedule(i);
+    }
+    
+    private void stopDrag(int i) {
+        int s = (int)(30 * scale);
+        float x = getX(i);
+        float y = getY(i);
+        
+        if (x < screenBounds.left + s) {
+            motion[i] = MOTION_MOVING;
+            leavingMode[i] = LM_GOING;
+            targetX[i] = screenBounds.left - s;
+            targetY[i] = (int)y;
+            changeAction(i, NEXT_MOVING);
+            startPath(i);
+        } else if (x >= screenBounds.right - s) {
+            motion[i] = MOTION_MOVING;
+            leavingMode[i] = LM_GOING;
+            targetX[i] = screenBounds.right + s;
+            targetY[i] = (int)y;
+            changeAction(i, NEXT_MOVING);
+            startPath(i);
+        } else {
+            arriveTarget(i);
+            changeAction(i, NEXT_WAITING);
+        }
+        schedule(i);
+    }
+    
+    /**
+     * Handles a touch event on the screen, allowing the user to drag ponies
+     * around as with {@link Ponies#onTouchEvent}.
+     * 
+     * @param action    the masked action of the event
+     * @param pointerId the identifier of the pointer the action concerns
+     * @param x         the x-coordinate of the first pointer
+     * @param y         the y-coordinate of the first pointer
+     */
+    public void onTouchEvent(int action, int pointerId, float x, float y) {
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+                if (draggedPony >= 0) stopDrag(draggedPony);
+                
+                initialPointerId = pointerId;
+                draggedPony = hitGrid.findTopmost(x, y, depthOrder.getRanks(), hitTest);
+                if (draggedPony >= 0) startDrag(draggedPony);
+                break;
+                
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (draggedPony >= 0) stopDrag(draggedPony);
+                
+                initialPointerId = -1;
+                draggedPony = -1;
+                break;
+                
+            case MotionEvent.ACTION_MOVE:
+                if (draggedPony >= 0) {
+                    moveTo(draggedPony, Math.round(x), Math.round(y));
+                }
+                break;
+                
+            case MotionEvent.ACTION_POINTER_UP:
+                if (pointerId == initialPointerId) {
+                    if (draggedPony >= 0) stopDrag(draggedPony);
+                    
+                    initialPointerId = -1;
+                    draggedPony = -1;
+                }
+                break;
+        }
+    }
+    
+}
@@ -1,13 +1,22 @@
 package uk.cpjsmith.ponypaper;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
 
 /**
  * Represents a definition of a pony that can be loaded from XML at runtime.
@@ -48,10 +57,7 @@ public class PonyDefinition {
         public Action(Element element) throws InvalidPonyException {
             List<String> errors = new ArrayList<String>();
             
-            name = element.getAttribute("name");
-            if (name.equals("")) {
-                errors.add("An <action> must have a name.");
-            }
+            setName(element.getAttribute("name"), errors);
             
             for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
                 switch (node.getNodeType()) {
@@ -89,6 +95,22 @@ public class PonyDefinition {
             
             if (!errors.isEmpty()) throw new InvalidPonyException(errors);
             
+            fillDefaults();
+        }
+        
+        /* For the streaming parser, which adds the content itself. */
+        private Action(String name, List<String> errors) {
+            setName(name, errors);
+        }
+        
+        private void setName(String name, List<String> errors) {
+            this.name = name;
+            if (name.equals("")) {
+                errors.add("An <action> must have a name.");
+            }
+        }
+        
+        private void fillDefaults() {
             if (specialType == null) specialType = "";
             if (!images.containsKey("left")) images.put("left", "");
             if (!timings.containsKey("left")) timings.put("left", "");
@@ -100,50 +122,72 @@ public class PonyDefinition {
         }
         
         private void addSpecialType(Element element, List<String> errors) {
+            if (!canAddSpecialType(errors)) return;
+            String content = getContent(element, errors);
+            specialType = content != null ? content.replaceAll("\\s+", "") : "";
+        }
+        
+        private void addImage(Element element, List<String> errors) {
+            String direction = element.getAttribute("direction");
+            if (!canAddImage(direction, errors)) return;
+            String content = getContent(element, errors);
+            images.put(direction, content != null ? content.replaceAll("\\s+", "") : "");
+        }
+        
+        private void addTimings(Element element, List<String> errors) {
+            String direction = element.getAttribute("direction");
+            if (!canAddTimings(direction, errors)) return;
+            timings.put(direction, getContent(element, errors));
+        }
+        
+        private void addNextActions(Element element, List<String> errors) {
+            String type = element.getAttribute("type");
+            if (!canAddNextActions(type, errors)) return;
+            nextActions.put(type, getContent(element, errors));
+        }
+        
+        private boolean canAddSpecialType(List<String> errors) {
             if (specialType != null) {
                 errors.add("Too many <specialtype> elements.");
-                return;
+                return false;
             }
-            specialType = getContent(element, errors).replaceAll("\\s+", "");
+            return true;
         }
         
-        private void addImage(Element element, List<String> errors) {
-            String direction = element.getAttribute("direction");
+        private boolean canAddImage(String direction, List<String> errors) {
             if (!(direction.equals("left") || direction.equals("right"))) {
                 errors.add("<image> must have a direction of left or right.");
-                return;
+                return false;
             }
             if (images.containsKey(direction)) {
                 errors.add("Too many <image> elements with direction " + direction + ".");
-                return;
+                return false;
             }
-            images.put(direction, getContent(element, errors).replaceAll("\\s+", ""));
+            return true;
         }
         
-        private void addTimings(Element element, List<String> errors) {
-            String direction = element.getAttribute("direction");
+        private boolean canAddTimings(String direction, List<String> errors) {
             if (!(direction.equals("left") || direction.equals("right"))) {
                 errors.add("<timings> must have a direction of left or right.");
-                return;
+                return false;
             }
             if (timings.containsKey(direction)) {
                 errors.add("Too many <timings> elements with direction " + direction + ".");
-                return;
+                return false;
             }
-            timings.put(direction, getContent(element, errors));
+            return true;
         }
         
-        private void addNextActions(Element element, List<String> errors) {
-            String type = element.getAttribute("type");
+        private boolean canAddNextActions(String type, List<String> errors) {
             if (!(type.equals("waiting") || type.equals("moving") || type.equals("drag"))) {
                 errors.add("<nextactions> must have a type of waiting, moving or drag.");
-                return;
+                return false;
             }
             if (nextActions.containsKey(type)) {
                 errors.add("Too many <nextactions> elements with type " + type + ".");
-                return;
+                return false;
             }
-            nextActions.put(type, getContent(element, errors));
+            return true;
         }
         
     }
@@ -211,14 +255,286 @@ public class PonyDefinition {
         this.actions = actions.toArray(new Action[actions.size()]);
     }
     
+    /**
+     * Reads a pony definition from XML without building a DOM. The result,
+     * and any errors reported, are the same as for {@link
+     * #PonyDefinition(Document)}, but the time taken is linear in the size of
+     * the input, and each image is copied only once, into a single buffer.
+     * 
+     * @param in the stream to read from; it is not closed
+     * @return the definition
+     * @throws InvalidPonyException if the XML does not describe a pony
+     * @throws IOException if the stream cannot be read
+     * @throws SAXException if the stream is not well-formed XML
+     */
+    public static PonyDefinition parse(InputStream in) throws InvalidPonyException, IOException, SAXException {
+        Parser parser = new Parser();
+        try {
+            XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+            reader.setContentHandler(parser);
+            try {
+                reader.setProperty("http://xml.org/sax/properties/lexical-handler", parser);
+            } catch (SAXException e) {
+                // Comments and CDATA sections then go unreported.
+            }
+            reader.parse(new InputSource(in));
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("No SAX parser available", e);
+        } catch (Parser.InvalidRootException e) {
+            // The errors are already recorded.
+        }
+        
+        if (!parser.errors.isEmpty()) throw new InvalidPonyException(parser.errors);
+        
+        PonyDefinition definition = new PonyDefinition();
+        definition.actions = parser.actions.toArray(new Action[parser.actions.size()]);
+        definition.startActions = parser.startActions;
+        return definition;
+    }
+    
+    /**
+     * Builds a definition from SAX events, following the rules of the DOM
+     * constructors node by node. Text is gathered into a single reusable
+     * buffer, and elements that are in error are skipped entirely.
+     */
+    private static class Parser extends DefaultHandler2 {
+        
+        /* Thrown to stop parsing once the root element has been rejected. */
+        static class InvalidRootException extends SAXException {
+        }
+        
+        private static final int SPECIAL_TYPE = 1;
+        private static final int IMAGE = 2;
+        private static final int TIMINGS = 3;
+        private static final int NEXT_ACTIONS = 4;
+        private static final int START_ACTIONS = 5;
+        
+        final List<String> errors = new ArrayList<String>();
+        final List<Action> actions = new ArrayList<Action>();
+        String startActions = null;
+        
+        /* The action being read, with its own list of errors. */
+        private Action action = null;
+        private List<String> actionErrors = null;
+        
+        /* The element whose text content is being read, if any. */
+        private int content = 0;
+        private String contentKey = null;
+        private boolean contentValid = false;
+        
+        /* Text content, or the text between elements. */
+        private final StringBuilder text = new StringBuilder();
+        
+        private int depth = 0;
+        /* The depth of the element being skipped, or 0. */
+        private int skipDepth = 0;
+        private boolean inCdata = false;
+        
+        private List<String> currentErrors() {
+            return action != null ? actionErrors : errors;
+        }
+        
+        private boolean isIgnoring() {
+            return depth == 0 || skipDepth != 0;
+        }
+        
+        /* Reports the text seen since the last element, as a DOM text node. */
+        private void flushText() {
+            if (content != 0) return;
+            String value = text.toString().trim();
+            if (!value.isEmpty()) {
+                currentErrors().add("Unexpected text " + value + ".");
+            }
+            text.setLength(0);
+        }
+        
+        /* Reports a node that may not appear where it has. */
+        private void unexpectedNode(String nodeName) {
+            flushText();
+            currentErrors().add("Unexpected " + nodeName + " node.");
+            if (content != 0) contentValid = false;
+        }
+        
+        private void skip(String message) {
+            currentErrors().add(message);
+            skipDepth = depth;
+        }
+        
+        private void startContent(int type, String key) {
+            content = type;
+            contentKey = key;
+            contentValid = true;
+            text.setLength(0);
+        }
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            depth++;
+            if (skipDepth != 0) return;
+            
+            if (depth == 1) {
+                if (!qName.equals("pony")) {
+                    errors.add("The root element must be <pony>.");
+                    throw new InvalidRootException();
+                }
+                return;
+            }
+            
+            flushText();
+            if (content != 0) {
+                // DOM reports an element within text content as a node.
+                contentValid = false;
+                skip("Unexpected " + qName + " node.");
+            } else if (action != null) {
+                int type;
+                String key = null;
+                boolean allowed;
+                if (qName.equals("specialtype")) {
+                    type = SPECIAL_TYPE;
+                    allowed = action.canAddSpecialType(actionErrors);
+                } else if (qName.equals("image")) {
+                    type = IMAGE;
+                    key = getAttribute(attributes, "direction");
+                    allowed = action.canAddImage(key, actionErrors);
+                } else if (qName.equals("timings")) {
+                    type = TIMINGS;
+                    key = getAttribute(attributes, "direction");
+                    allowed = action.canAddTimings(key, actionErrors);
+                } else if (qName.equals("nextactions")) {
+                    type = NEXT_ACTIONS;
+                    key = getAttribute(attributes, "type");
+                    allowed = action.canAddNextActions(key, actionErrors);
+                } else {
+                    skip("Unexpected " + qName + " element.");
+                    return;
+                }
+                if (allowed) {
+                    startContent(type, key);
+                } else {
+                    skipDepth = depth;
+                }
+            } else if (depth == 2) {
+                if (qName.equals("action")) {
+                    actionErrors = new ArrayList<String>();
+                    action = new Action(getAttribute(attributes, "name"), actionErrors);
+                } else if (qName.equals("startactions")) {
+                    if (startActions != null) {
+                        skip("Too many <startactions> elements.");
+                    } else {
+                        startContent(START_ACTIONS, null);
+                    }
+                } else {
+                    skip("Unexpected " + qName + " element.");
+                }
+            }
+        }
+        
+        private static String getAttribute(Attributes attributes, String name) {
+            String value = attributes.getValue(name);
+            return value != null ? value : "";
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (skipDepth != 0) {
+                if (depth == skipDepth) skipDepth = 0;
+                depth--;
+                return;
+            }
+            depth--;
+            
+            if (content != 0) {
+                String value = contentValid ? text.toString().trim() : null;
+                switch (content) {
+                    case SPECIAL_TYPE:
+                        action.specialType = value != null ? value : "";
+                        break;
+                    case IMAGE:
+                        action.images.put(contentKey, value != null ? value : "");
+                        break;
+                    case TIMINGS:
+                        action.timings.put(contentKey, value);
+                        break;
+                    case NEXT_ACTIONS:
+                        action.nextActions.put(contentKey, value);
+                        break;
+                    case START_ACTIONS:
+                        startActions = value;
+                        break;
+                }
+                content = 0;
+                text.setLength(0);
+                return;
+            }
+            
+            flushText();
+            if (action != null) {
+                if (actionErrors.isEmpty()) {
+                    action.fillDefaults();
+                    actions.add(action);
+                } else {
+                    errors.addAll(actionErrors);
+                }
+                action = null;
+                actionErrors = null;
+            }
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (isIgnoring() || inCdata) return;
+            if (content == IMAGE || content == SPECIAL_TYPE) {
+                // Whitespace is removed as it arrives, rather than afterwards.
+                if (!contentValid) return;
+                int end = start + length;
+                for (int i = start; i < end; i++) {
+                    char c = ch[i];
+                    if (!(c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r')) text.append(c);
+                }
+            } else if (content == 0 || contentValid) {
+                text.append(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            characters(ch, start, length);
+        }
+        
+        @Override
+        public void startCDATA() {
+            if (isIgnoring()) return;
+            unexpectedNode("#cdata-section");
+            inCdata = true;
+        }
+        
+        @Override
+        public void endCDATA() {
+            inCdata = false;
+        }
+        
+        @Override
+        public void comment(char[] ch, int start, int length) {
+            if (isIgnoring()) return;
+            unexpectedNode("#comment");
+        }
+        
+        @Override
+        public void processingInstruction(String target, String data) {
+            if (isIgnoring()) return;
+            unexpectedNode(target);
+        }
+        
+    }
+    
     private static String getContent(Element container, List<String> errors) {
-        String result = "";
+        StringBuilder result = new StringBuilder();
         boolean valid = true;
         
         for (Node node = container.getFirstChild(); node != null; node = node.getNextSibling()) {
             switch (node.getNodeType()) {
                 case Node.TEXT_NODE:
-                    result += node.getNodeValue();
+                    result.append(node.getNodeValue());
                     break;
                     
                 default:
@@ -228,7 +544,7 @@ public class PonyDefinition {
             }
         }
         
-        return valid ? result.trim() : null;
+        return valid ? result.toString().trim() : null;
     }
     
     private boolean hasAction(String name) {
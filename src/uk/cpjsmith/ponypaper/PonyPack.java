@@ -0,0 +1,451 @@
+package uk.cpjsmith.ponypaper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled collection of custom ponies in a binary file. Unlike the XML
+ * format, images are stored as plain bytes rather than base64 text, and the
+ * file can be memory-mapped so that only the images actually displayed are
+ * ever read.
+ * <p>
+ * The file layout is as follows, with all values big-endian:
+ * <pre>
+ * header  int magic ("PPAK"), int version, int pony count, int index length
+ * index   for each pony: name, actions and start actions (see writePony)
+ *         int blob count, then for each blob: byte format, int offset,
+ *         int length
+ * blobs   the images, each starting at a multiple of 16 bytes
+ * </pre>
+ * Actions refer to each other, and to their images, by index; identical
+ * images are stored once. This class has no Android dependencies, so that the
+ * editor can use it too.
+ */
+public class PonyPack {
+    
+    /** The file name extension of pony packs. */
+    public static final String EXTENSION = ".ponypack";
+    
+    /** Blob format for an image file (e.g. PNG) that must be decoded. */
+    public static final int FORMAT_ENCODED = 0;
+    
+    /** Index into {@link Action#nextActions} of the next waiting actions. */
+    public static final int WAITING = 0;
+    /** Index into {@link Action#nextActions} of the next moving actions. */
+    public static final int MOVING = 1;
+    /** Index into {@link Action#nextActions} of the next drag actions. */
+    public static final int DRAG = 2;
+    
+    private static final int MAGIC = 0x5050414b; // "PPAK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BLOB_ENTRY_SIZE = 9;
+    private static final int ALIGNMENT = 16;
+    
+    /**
+     * A single pony within a pack.
+     */
+    public static class Pony {
+        
+        public String name;
+        public Action[] actions;
+        /* Indices into actions. */
+        public int[] startActions;
+        
+    }
+    
+    /**
+     * A single action of a pony. Arrays indexed by direction use {@code
+     * PonyAction.LEFT} and {@code PonyAction.RIGHT}.
+     */
+    public static class Action {
+        
+        public String name;
+        public String specialType;
+        /* The blob index of the image for each direction. */
+        public final int[] images = new int[2];
+        /* The frame times for each direction. */
+        public final int[][] timings = new int[2][];
+        /* Indices into the pony's actions, by WAITING, MOVING and DRAG. */
+        public final int[][] nextActions = new int[3][];
+        
+    }
+    
+    /**
+     * Builds a pack from XML pony definitions. Subclasses supply the base64
+     * decoder, since the editor and the wallpaper have different ones.
+     */
+    public abstract static class Builder {
+        
+        private static final String[] DIRECTIONS = {"left", "right"};
+        private static final String[] NEXT_TYPES = {"waiting", "moving", "drag"};
+        
+        private final List<Pony> ponies = new ArrayList<Pony>();
+        private final List<ByteBuffer> blobs = new ArrayList<ByteBuffer>();
+        /* Maps each base64 image already added to its blob index. */
+        private final Map<String, Integer> blobIndices = new HashMap<String, Integer>();
+        
+        /**
+         * Decodes a base64 image from a definition.
+         * 
+         * @param image the base64-encoded image
+         * @return the image file
+         * @throws IllegalArgumentException if the image is not valid base64
+         */
+        protected abstract byte[] decode(String image);
+        
+        /**
+         * Adds a pony to the pack being built. The definition must be valid.
+         * 
+         * @param name       the name of the pony, e.g. its file name
+         * @param definition the pony's definition
+         * @throws IllegalArgumentException if the definition refers to an
+         *                                  action that does not exist, or
+         *                                  contains invalid base64
+         */
+        public void addPony(String name, PonyDefinition definition) {
+            Map<String, Integer> actionIndices = new HashMap<String, Integer>();
+            for (int i = 0; i < definition.actions.length; i++) {
+                actionIndices.put(definition.actions[i].name, i);
+            }
+            
+            Pony pony = new Pony();
+            pony.name = name;
+            pony.actions = new Action[definition.actions.length];
+            for (int i = 0; i < definition.actions.length; i++) {
+                PonyDefinition.Action source = definition.actions[i];
+                Action action = new Action();
+                action.name = source.name;
+                action.specialType = source.specialType;
+                for (int dir = 0; dir < 2; dir++) {
+                    action.images[dir] = addBlob(source.images.get(DIRECTIONS[dir]));
+                    action.timings[dir] = parseInts(source.timings.get(DIRECTIONS[dir]));
+                }
+                for (int type = 0; type < 3; type++) {
+                    action.nextActions[type] = findActions(actionIndices, source.nextActions.get(NEXT_TYPES[type]));
+                }
+                pony.actions[i] = action;
+            }
+            pony.startActions = findActions(actionIndices, definition.startActions);
+            ponies.add(pony);
+        }
+        
+        private int addBlob(String image) {
+            Integer index = blobIndices.get(image);
+            if (index == null) {
+                index = blobs.size();
+                blobs.add(ByteBuffer.wrap(decode(image)));
+                blobIndices.put(image, index);
+            }
+            return index;
+        }
+        
+        private static int[] parseInts(String value) {
+            String[] array = value.split(",");
+            int[] result = new int[array.length];
+            for (int i = 0; i < array.length; i++) {
+                result[i] = Integer.parseInt(array[i]);
+            }
+            return result;
+        }
+        
+        private static int[] findActions(Map<String, Integer> actionIndices, String names) {
+            String[] array = names.split(",");
+            int[] result = new int[array.length];
+            for (int i = 0; i < array.length; i++) {
+                Integer index = actionIndices.get(array[i]);
+                if (index == null) throw new IllegalArgumentException("Action " + array[i] + " not defined.");
+                result[i] = index;
+            }
+            return result;
+        }
+        
+        /**
+         * Returns the pack containing all the ponies added so far.
+         * 
+         * @return the pack
+         */
+        public PonyPack toPack() {
+            return new PonyPack(ponies.toArray(new Pony[ponies.size()]),
+                                blobs.toArray(new ByteBuffer[blobs.size()]));
+        }
+        
+    }
+    
+    public final Pony[] ponies;
+    
+    private final ByteBuffer[] blobs;
+    /* The file the pack was read from, and its size and modification time,
+       or null if it was not read from a file. */
+    private String source = null;
+    
+    /**
+     * Creates a pack to be written out.
+     * 
+     * @param ponies the ponies in the pack
+     * @param blobs  the images that the ponies' actions refer to, each as
+     *               an image file in a buffer from its position to its limit
+     */
+    public PonyPack(Pony[] ponies, ByteBuffer[] blobs) {
+        this.ponies = ponies;
+        this.blobs = blobs;
+    }
+    
+    /**
+     * Opens a pack file. The file is memory-mapped, and images are read from
+     * it as they are requested.
+     * 
+     * @param file the file to read
+     * @return the pack
+     * @throws IOException if the file cannot be read or is not a valid pack
+     */
+    public static PonyPack read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            PonyPack pack = read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            pack.source = file.getPath() + ":" + channel.size() + ":" + file.lastModified();
+            return pack;
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Reads a pack from memory. The returned pack refers to the given buffer
+     * for its images.
+     * 
+     * @param data the pack, from position 0 to the buffer's limit
+     * @return the pack
+     * @throws IOException if the data is not a valid pack
+     */
+    public static PonyPack read(ByteBuffer data) throws IOException {
+        if (data.limit() < HEADER_SIZE) throw new IOException("Truncated pony pack.");
+        if (data.getInt(0) != MAGIC) throw new IOException("Not a pony pack.");
+        if (data.getInt(4) != VERSION) throw new IOException("Unsupported pony pack version " + data.getInt(4) + ".");
+        int ponyCount = data.getInt(8);
+        int indexLength = data.getInt(12);
+        if (indexLength < 0 || indexLength > data.limit() - HEADER_SIZE) throw new IOException("Truncated pony pack.");
+        
+        byte[] index = new byte[indexLength];
+        ByteBuffer indexBuffer = data.duplicate();
+        indexBuffer.position(HEADER_SIZE);
+        indexBuffer.get(index);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+        
+        if (ponyCount < 0 || ponyCount > indexLength) throw new IOException("Corrupt pony pack.");
+        Pony[] ponies = new Pony[ponyCount];
+        for (int i = 0; i < ponyCount; i++) {
+            ponies[i] = readPony(in);
+        }
+        
+        int blobCount = readCount(in, BLOB_ENTRY_SIZE);
+        ByteBuffer[] blobs = new ByteBuffer[blobCount];
+        for (int i = 0; i < blobCount; i++) {
+            int format = in.readByte();
+            int offset = in.readInt();
+            int length = in.readInt();
+            if (format != FORMAT_ENCODED) throw new IOException("Unsupported image format " + format + ".");
+            if (offset < 0 || length < 0 || offset > data.limit() - length) throw new IOException("Image " + i + " is outside the pack.");
+            ByteBuffer blob = data.duplicate();
+            blob.position(offset);
+            blob.limit(offset + length);
+            blobs[i] = blob.slice();
+        }
+        
+        PonyPack pack = new PonyPack(ponies, blobs);
+        pack.checkIndices();
+        return pack;
+    }
+    
+    private static Pony readPony(DataInputStream in) throws IOException {
+        Pony pony = new Pony();
+        pony.name = in.readUTF();
+        pony.actions = new Action[readCount(in, 1)];
+        for (int i = 0; i < pony.actions.length; i++) {
+            Action action = new Action();
+            action.name = in.readUTF();
+            action.specialType = in.readUTF();
+            for (int dir = 0; dir < 2; dir++) {
+                action.images[dir] = in.readInt();
+                action.timings[dir] = readInts(in);
+            }
+            for (int type = 0; type < 3; type++) {
+                action.nextActions[type] = readInts(in);
+            }
+            pony.actions[i] = action;
+        }
+        pony.startActions = readInts(in);
+        return pony;
+    }
+    
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] result = new int[readCount(in, 4)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = in.readInt();
+        }
+        return result;
+    }
+    
+    /* Reads the length of an array, checking that the index can hold it. */
+    private static int readCount(DataInputStream in, int bytesEach) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / bytesEach) throw new IOException("Corrupt pony pack.");
+        return count;
+    }
+    
+    /**
+     * Checks that every index in the pack refers to something that exists,
+     * so that a corrupt file fails when it is opened rather than when its
+     * ponies are on screen.
+     */
+    private void checkIndices() throws IOException {
+        for (Pony pony : ponies) {
+            int actionCount = pony.actions.length;
+            if (pony.startActions.length == 0) throw new IOException("Pony " + pony.name + " has no start actions.");
+            checkRange(pony.startActions, actionCount, pony.name);
+            for (Action action : pony.actions) {
+                for (int dir = 0; dir < 2; dir++) {
+                    if (action.images[dir] < 0 || action.images[dir] >= blobs.length) {
+                        throw new IOException("Invalid image index in " + pony.name + ".");
+                    }
+                    if (action.timings[dir].length == 0) throw new IOException("Missing timings in " + pony.name + ".");
+                }
+                for (int type = 0; type < 3; type++) {
+                    if (action.nextActions[type].length == 0) throw new IOException("Missing next actions in " + pony.name + ".");
+                    checkRange(action.nextActions[type], actionCount, pony.name);
+                }
+            }
+        }
+    }
+    
+    private static void checkRange(int[] indices, int count, String name) throws IOException {
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= count) throw new IOException("Invalid action index in " + name + ".");
+        }
+    }
+    
+    /** @return the number of images in the pack */
+    public int getBlobCount() {
+        return blobs.length;
+    }
+    
+    /**
+     * Returns an image from the pack. The returned buffer is independent of
+     * the pack, so the caller may change its position.
+     * 
+     * @param index the blob index of the image
+     * @return the image file, from the buffer's position to its limit
+     */
+    public ByteBuffer getBlob(int index) {
+        return blobs[index].duplicate();
+    }
+    
+    /**
+     * Returns a string that identifies an image in the pack without reading
+     * it. Images from the same version of the same file have the same source,
+     * so callers can use it to remember what they have learnt about them.
+     * 
+     * @param index the blob index of the image
+     * @return the source of the image, or {@code null} if the pack was not
+     *         read from a file
+     */
+    public String getBlobSource(int index) {
+        return source != null ? source + "#" + index : null;
+    }
+    
+    /**
+     * Writes the pack in its binary format.
+     * 
+     * @param out the stream to write to; it is not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(OutputStream out) throws IOException {
+        ByteArrayOutputStream ponyBytes = new ByteArrayOutputStream();
+        DataOutputStream ponyOut = new DataOutputStream(ponyBytes);
+        for (Pony pony : ponies) {
+            writePony(ponyOut, pony);
+        }
+        ponyOut.flush();
+        
+        int indexLength = ponyBytes.size() + 4 + BLOB_ENTRY_SIZE * blobs.length;
+        int[] offsets = new int[blobs.length];
+        int offset = HEADER_SIZE + indexLength;
+        for (int i = 0; i < blobs.length; i++) {
+            offset = align(offset);
+            offsets[i] = offset;
+            offset += blobs[i].remaining();
+        }
+        
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeInt(ponies.length);
+        dataOut.writeInt(indexLength);
+        ponyBytes.writeTo(dataOut);
+        dataOut.writeInt(blobs.length);
+        for (int i = 0; i < blobs.length; i++) {
+            dataOut.writeByte(FORMAT_ENCODED);
+            dataOut.writeInt(offsets[i]);
+            dataOut.writeInt(blobs[i].remaining());
+        }
+        
+        int written = HEADER_SIZE + indexLength;
+        for (int i = 0; i < blobs.length; i++) {
+            while (written < offsets[i]) {
+                dataOut.writeByte(0);
+                written++;
+            }
+            ByteBuffer blob = blobs[i].duplicate();
+            byte[] chunk = new byte[Math.min(blob.remaining(), 8192)];
+            while (blob.hasRemaining()) {
+                int count = Math.min(chunk.length, blob.remaining());
+                blob.get(chunk, 0, count);
+                dataOut.write(chunk, 0, count);
+            }
+            written += blobs[i].remaining();
+        }
+        dataOut.flush();
+    }
+    
+    private static void writePony(DataOutputStream out, Pony pony) throws IOException {
+        out.writeUTF(pony.name);
+        out.writeInt(pony.actions.length);
+        for (Action action : pony.actions) {
+            out.writeUTF(action.name);
+            out.writeUTF(action.specialType);
+            for (int dir = 0; dir < 2; dir++) {
+                out.writeInt(action.images[dir]);
+                writeInts(out, action.timings[dir]);
+            }
+            for (int type = 0; type < 3; type++) {
+                writeInts(out, action.nextActions[type]);
+            }
+        }
+        writeInts(out, pony.startActions);
+    }
+    
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int i = 0; i < values.length; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+    
+    private static int align(int offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+    
+}
@@ -1,25 +1,40 @@
 package uk.cpjsmith.ponypaper;
 
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.service.wallpaper.WallpaperService;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
 
 public class PonyWallpaper extends WallpaperService {
     
+    /* Memory pressure tiers, each of which also does what those below do. */
+    private static final int TRIM_MILD = 1;
+    private static final int TRIM_MODERATE = 2;
+    private static final int TRIM_CRITICAL = 3;
+    
+    /* The engines that have not been destroyed. Accessed on the main thread. */
+    private final ArrayList<PonyEngine> engines = new ArrayList<PonyEngine>();
+    
+    /**
+     * Draws the wallpaper. All of the engine's drawing and simulation state is
+     * owned by a dedicated render thread; the callbacks below, which arrive on
+     * the main thread, only post work to that thread's message queue.
+     */
     private class PonyEngine extends Engine implements SharedPreferences.OnSharedPreferenceChangeListener {
         
         private Ponies ponies = null;
-        private Bitmap background = null;
+        private final BackgroundCache background = new BackgroundCache();
         private float xOffset = 0.5f;
         private float yOffset = 0.5f;
         private boolean drunkMode = false;
@@ -27,138 +42,363 @@ public class PonyWallpaper extends WallpaperService {
         private int backgroundColour = 0;
         private int initFrameCount = 0;
         
-        private boolean isVisible = false;
-        private final Runnable drawFrameCallback = new Runnable() {
-            public void run() {
-                drawFrame();
-            }
-        };
+        /* Whether to redraw only the areas the ponies have moved through. */
+        private boolean dirtyRectMode = false;
+        /* Set when the next frame cannot be drawn as a partial update. */
+        private boolean fullRedraw = true;
+        private final Rect surfaceBounds = new Rect();
+        /* Scratch object reused every frame to avoid allocation. */
+        private final Rect dirtyBounds = new Rect();
+        
+        private final HandlerThread renderThread;
+        private final Handler renderHandler;
+        /* Delivers touch events to the render thread in pooled messages, so
+           that dragging allocates nothing. It shares the render thread's
+           queue, so events stay in order with the tasks posted there. */
+        private final Handler touchHandler;
+        private final FrameScheduler scheduler;
         
         private PonyEngine() {
-            getPreferences().registerOnSharedPreferenceChangeListener(this);
+            renderThread = new HandlerThread("PonyRender", Process.THREAD_PRIORITY_DISPLAY);
+            renderThread.start();
+            renderHandler = new Handler(renderThread.getLooper());
+            touchHandler = new Handler(renderThread.getLooper(), new Handler.Callback() {
+                public boolean handleMessage(Message msg) {
+                    if (ponies != null) {
+                        ponies.onTouchEvent(msg.what & 0xff, msg.what >>> 8, Float.intBitsToFloat(msg.arg1),
+                                            Float.intBitsToFloat(msg.arg2));
+                    }
+                    return true;
+                }
+            });
+            scheduler = new FrameScheduler(renderHandler, new FrameScheduler.Callback() {
+                public void onFrame(int ticks, float interpolation) {
+                    drawFrame(ticks, interpolation);
+                }
+            });
+            
+            SharedPreferences prefs = getPreferences();
+            prefs.registerOnSharedPreferenceChangeListener(this);
             paint = new Paint();
+            setFrameRate(prefs);
+            dirtyRectMode = prefs.getBoolean("pref_dirty_rects", false);
+        }
+        
+        /**
+         * Runs a task on the render thread and waits for it to complete. This
+         * should only be used where the main thread must not continue until
+         * rendering has stopped, e.g. before the surface is destroyed.
+         * 
+         * @param task the task to run
+         */
+        private void runOnRenderThreadAndWait(final Runnable task) {
+            final CountDownLatch done = new CountDownLatch(1);
+            boolean posted = renderHandler.post(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            if (!posted) return; // The render thread has already quit.
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
         }
         
         private SharedPreferences getPreferences() {
             return PreferenceManager.getDefaultSharedPreferences(PonyWallpaper.this);
         }
         
+        private void setFrameRate(SharedPreferences prefs) {
+            int rate;
+            try {
+                rate = Integer.parseInt(prefs.getString("pref_frame_rate", Integer.toString(FrameScheduler.DEFAULT_RATE)));
+            } catch (NumberFormatException e) {
+                rate = FrameScheduler.DEFAULT_RATE;
+            }
+            scheduler.setTargetRate(rate);
+        }
+        
         @Override
-        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
-            ponies = null;
+        public void onSharedPreferenceChanged(final SharedPreferences prefs, final String key) {
+            renderHandler.post(new Runnable() {
+                public void run() {
+                    if ("pref_frame_rate".equals(key)) {
+                        setFrameRate(prefs);
+                        return;
+                    }
+                    if ("pref_dirty_rects".equals(key)) {
+                        dirtyRectMode = prefs.getBoolean(key, false);
+                        fullRedraw = true;
+                        return;
+                    }
+                    // Nothing to update if the ponies will be created afresh.
+                    if (ponies == null) return;
+                    
+                    if (AllPonies.isPonyKey(key)) {
+                        ponies.setEnabled(key, prefs.getBoolean(key, true));
+                    } else if ("pref_add_custom".equals(key)) {
+                        ponies.reloadChangedCustomPonies(prefs);
+                    } else if ("pref_num_ponies".equals(key)) {
+                        ponies.setTargetCount(prefs.getInt(key, 4));
+                    } else if ("pref_background".equals(key) || "pref_select_background".equals(key)
+                            || "pref_pixelation".equals(key)) {
+                        loadBackground(prefs);
+                        fullRedraw = true;
+                    } else if ("pref_drunk_mode".equals(key)) {
+                        setDrunkMode(prefs.getBoolean(key, false));
+                        fullRedraw = true;
+                    } else {
+                        ponies.release();
+                        ponies = null;
+                    }
+                }
+            });
         }
         
         @Override
         public void onDestroy() {
             super.onDestroy();
-            handler.removeCallbacks(drawFrameCallback);
+            engines.remove(this);
+            getPreferences().unregisterOnSharedPreferenceChangeListener(this);
+            renderHandler.post(new Runnable() {
+                public void run() {
+                    scheduler.stop();
+                    if (ponies != null) ponies.release();
+                    ponies = null;
+                    background.clear();
+                    renderThread.quit();
+                }
+            });
         }
         
         @Override
-        public void onVisibilityChanged(boolean visible) {
-            isVisible = visible;
-            if (visible) drawFrame();
-            else handler.removeCallbacks(drawFrameCallback);
+        public void onVisibilityChanged(final boolean visible) {
+            renderHandler.post(new Runnable() {
+                public void run() {
+                    if (visible) {
+                        // Files may have been changed over USB while hidden,
+                        // and the background may have been reduced.
+                        if (ponies != null) {
+                            SharedPreferences prefs = getPreferences();
+                            ponies.reloadChangedCustomPonies(prefs);
+                            loadBackground(prefs);
+                        }
+                        fullRedraw = true;
+                        scheduler.start();
+                    } else {
+                        scheduler.stop();
+                    }
+                }
+            });
         }
         
         @Override
-        public void onOffsetsChanged(float xOffset, float yOffset, float xOffsetStep, float yOffsetStep, int xPixelOffset, int yPixelOffset) {
-            this.xOffset = xOffset;
-            this.yOffset = yOffset;
+        public void onOffsetsChanged(final float xOffset, final float yOffset, float xOffsetStep, float yOffsetStep, int xPixelOffset, int yPixelOffset) {
+            renderHandler.post(new Runnable() {
+                public void run() {
+                    PonyEngine.this.xOffset = xOffset;
+                    PonyEngine.this.yOffset = yOffset;
+                    fullRedraw = true;
+                }
+            });
         }
         
         @Override
-        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        public void onSurfaceChanged(SurfaceHolder holder, int format, final int width, final int height) {
             super.onSurfaceChanged(holder, format, width, height);
-            if (ponies != null) ponies.reset();
-            if (drunkMode) {
-                initFrameCount = 0;
-                backgroundColour = 0xff333333;
-                paint.setAlpha(0xff);
-            }
-            drawFrame();
+            renderHandler.post(new Runnable() {
+                public void run() {
+                    surfaceBounds.set(0, 0, width, height);
+                    fullRedraw = true;
+                    if (ponies != null) {
+                        ponies.reset();
+                        loadBackground(getPreferences());
+                    }
+                    if (drunkMode) {
+                        initFrameCount = 0;
+                        backgroundColour = 0xff333333;
+                        paint.setAlpha(0xff);
+                    }
+                    drawFrame(0, 0);
+                }
+            });
         }
         
         @Override
         public void onSurfaceDestroyed(SurfaceHolder holder) {
+            // The surface is released once this returns, so wait until the
+            // render thread is no longer drawing on it.
+            runOnRenderThreadAndWait(new Runnable() {
+                public void run() {
+                    scheduler.stop();
+                }
+            });
             super.onSurfaceDestroyed(holder);
-            isVisible = false;
-            handler.removeCallbacks(drawFrameCallback);
         }
         
         @Override
         public void onTouchEvent(MotionEvent event) {
-            if (ponies != null) ponies.onTouchEvent(event);
+            // The framework recycles the event after this returns, so only
+            // the values needed are sent: the action and pointer identifier
+            // together, then the exact bits of the coordinates.
+            int pointerId = event.getPointerId(event.getActionIndex());
+            touchHandler.obtainMessage(event.getActionMasked() | pointerId << 8,
+                                       Float.floatToRawIntBits(event.getX()), Float.floatToRawIntBits(event.getY()))
+                        .sendToTarget();
+        }
+        
+        /**
+         * Releases memory in response to pressure from the system. Mild
+         * pressure drops the sprites of off-screen ponies, moderate pressure
+         * also reduces the background, and critical pressure also drops all
+         * but the current actions of on-screen ponies. Everything is loaded
+         * again as it is needed.
+         * 
+         * @param tier {@code TRIM_MILD}, {@code TRIM_MODERATE} or {@code
+         *             TRIM_CRITICAL}
+         */
+        private void trimMemory(final int tier) {
+            renderHandler.post(new Runnable() {
+                public void run() {
+                    if (ponies != null) ponies.trimMemory(tier >= TRIM_CRITICAL);
+                    if (tier >= TRIM_MODERATE) {
+                        background.reduce();
+                        fullRedraw = true;
+                    }
+                    SpriteCache.getInstance().trimToSize(0);
+                }
+            });
+        }
+        
+        /**
+         * Starts preparing the user's chosen background image, if any, for
+         * the current surface. The screen is redrawn once it is ready.
+         * 
+         * @param prefs the user's preferences
+         */
+        private void loadBackground(SharedPreferences prefs) {
+            File dir = getExternalFilesDir(null);
+            File bgFile = dir == null ? null : new File(dir, "background");
+            if (!prefs.getBoolean("pref_background", false) || bgFile == null || !bgFile.exists()) {
+                background.clear();
+                return;
+            }
+            background.load(bgFile, prefs.getString("pref_select_background", null), prefs.getInt("pref_pixelation", 1),
+                            surfaceBounds.width(), surfaceBounds.height(), renderHandler, new Runnable() {
+                public void run() {
+                    fullRedraw = true;
+                }
+            });
         }
         
-        private void drawFrame() {
+        private void setDrunkMode(boolean enabled) {
+            drunkMode = enabled;
+            initFrameCount = 0;
+            backgroundColour = 0xff333333;
+            paint.setAlpha(0xff);
+        }
+        
+        /**
+         * Draws a single frame, advancing the ponies by the given time.
+         * 
+         * @param ticks         the number of 10-millisecond intervals that
+         *                      have passed since the previous frame
+         * @param interpolation the fraction of a tick that has passed since
+         *                      the last whole one
+         */
+        private void drawFrame(int ticks, float interpolation) {
+            if (surfaceBounds.isEmpty()) return; // Not yet told the surface size.
+            
+            if (ponies == null) {
+                SharedPreferences prefs = getPreferences();
+                ponies = new Ponies(PonyWallpaper.this, prefs);
+                
+                setDrunkMode(prefs.getBoolean("pref_drunk_mode", false));
+                loadBackground(prefs);
+                fullRedraw = true;
+            }
+            if (drunkMode && initFrameCount <= 3 && initFrameCount++ == 3) {
+                backgroundColour = 0x33333333;
+                paint.setAlpha(0x33);
+            }
+            
+            ponies.update(surfaceBounds, ticks, interpolation);
+            
+            // Drunk mode relies on the previous frame showing through, so it
+            // always needs the whole screen repainting.
+            boolean partial = dirtyRectMode && !fullRedraw && !drunkMode && !ponies.needsFullRedraw();
+            if (partial) {
+                dirtyBounds.setEmpty();
+                ponies.addDirtyRegion(dirtyBounds);
+                if (!dirtyBounds.intersect(surfaceBounds)) return; // Nothing visible has changed.
+            }
+            
             final SurfaceHolder holder = getSurfaceHolder();
             
             Canvas c = null;
             try {
-                c = holder.lockCanvas();
-                if (ponies == null) {
-                    SharedPreferences prefs = getPreferences();
-                    ponies = new Ponies(PonyWallpaper.this, prefs);
-                    
-                    background = null;
-                    drunkMode = prefs.getBoolean("pref_drunk_mode", false);
-                    initFrameCount = 0;
-                    backgroundColour = 0xff333333;
-                    paint.setAlpha(0xff);
-                    if (prefs.getBoolean("pref_background", false)) {
-                        File bgFile = new File(getExternalFilesDir(null), "background");
-                        if (bgFile.exists()) {
-                            BitmapFactory.Options bfo = new BitmapFactory.Options();
-                            bfo.inScaled = false;
-                            bfo.inJustDecodeBounds = true;
-                            BitmapFactory.decodeFile(bgFile.toString(), bfo);
-                            int h = bfo.outHeight, w = bfo.outWidth;
-                            int scale = Math.min(h / c.getHeight(), w / c.getWidth());
-                            scale *= prefs.getInt("pref_pixelation", 1);
-                            bfo.inJustDecodeBounds = false;
-                            bfo.inSampleSize = scale;
-                            background = BitmapFactory.decodeFile(bgFile.toString(), bfo);
-                        }
-                    }
-                }
-                if (drunkMode && initFrameCount <= 3 && initFrameCount++ == 3) {
-                    backgroundColour = 0x33333333;
-                    paint.setAlpha(0x33);
-                }
+                c = partial ? holder.lockCanvas(dirtyBounds) : holder.lockCanvas();
                 if (c != null) {
-                    if (background != null) {
-                        Rect srcRect = new Rect(0, 0, background.getWidth(), background.getHeight());
-                        Rect cb = c.getClipBounds();
-                        float scale = Math.max((float)cb.height() / (float)srcRect.height(),
-                                               (float)cb.width() / (float)srcRect.width());
-                        RectF dstRect = new RectF((cb.width() - srcRect.width() * scale) * xOffset,
-                                                  (cb.height() - srcRect.height() * scale) * yOffset,
-                                                  (cb.width() - srcRect.width() * scale) * xOffset + srcRect.width() * scale,
-                                                  (cb.height() - srcRect.height() * scale) * yOffset + srcRect.height() * scale);
-                        c.drawBitmap(background, srcRect, dstRect, paint);
+                    if (background.covers(surfaceBounds)) {
+                        background.draw(c, surfaceBounds, xOffset, yOffset, paint);
                     } else {
                         c.drawColor(backgroundColour);
                     }
-                    ponies.drawAndUpdate(c);
+                    ponies.draw(c);
+                    if (!partial) fullRedraw = false;
                 }
             } finally {
                 if (c != null) holder.unlockCanvasAndPost(c);
             }
-            
-            // Reschedule the next redraw
-            handler.removeCallbacks(drawFrameCallback);
-            if (isVisible) handler.postDelayed(drawFrameCallback, 1000 / 25);
         }
         
     }
     
-    private final Handler handler = new Handler();
-    
     @Override
     public Engine onCreateEngine() {
         PreferenceManager.setDefaultValues(this, R.xml.preferences, true);
-        return new PonyEngine();
+        SpriteCache.init(this);
+        SpriteDiskCache.init(this);
+        PonyEngine engine = new PonyEngine();
+        engines.add(engine);
+        return engine;
+    }
+    
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        int tier;
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            tier = TRIM_CRITICAL;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            tier = TRIM_MODERATE;
+        } else if (level == TRIM_MEMORY_UI_HIDDEN) {
+            return; // Only the settings screen has gone; memory is not short.
+        } else {
+            tier = TRIM_MILD;
+        }
+        for (PonyEngine engine : engines) {
+            engine.trimMemory(tier);
+        }
+    }
+    
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        for (PonyEngine engine : engines) {
+            engine.trimMemory(TRIM_CRITICAL);
+        }
     }
     
 }
@@ -13,18 +13,17 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
 import android.provider.OpenableColumns;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Random;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
 
 public class Settings extends PreferenceActivity {
     
@@ -40,7 +39,7 @@ public class Settings extends PreferenceActivity {
         if (dir != null) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
             
-            File[] files = dir.listFiles(AllPonies.xmlFilter);
+            File[] files = dir.listFiles(AllPonies.customFilter);
             Arrays.sort(files);
             PreferenceCategory customCat = (PreferenceCategory)findPreference("pref_custom");
             for (int i = 0; i < files.length; i++) {
@@ -118,23 +117,29 @@ public class Settings extends PreferenceActivity {
             case SELECT_CUSTOM:
                 if (resultCode == RESULT_OK) {
                     Uri ponyUri = data.getData();
+                    String fileName = getFileName(ponyUri);
+                    boolean isPack = fileName.endsWith(PonyPack.EXTENSION);
                     
                     // Validate the pony before storing it.
                     try {
-                        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-                        DocumentBuilder docBuilder = dbf.newDocumentBuilder();
                         InputStream in = getContentResolver().openInputStream(ponyUri);
-                        Document document = docBuilder.parse(in);
-                        PonyDefinition definition = new PonyDefinition(document);
-                        definition.validate();
+                        try {
+                            if (isPack) {
+                                PonyPack.read(ByteBuffer.wrap(readFully(in)));
+                            } else {
+                                PonyDefinition definition = PonyDefinition.parse(in);
+                                definition.validate();
+                            }
+                        } finally {
+                            in.close();
+                        }
                     } catch (Exception e) {
                         showAlertDialog("Failed to add pony", "Selected file was not a valid custom pony definition.");
                         break;
                     }
                     
                     try {
-                        String fileName = getFileName(ponyUri);
-                        if (!fileName.endsWith(".xml")) {
+                        if (!isPack && !fileName.endsWith(".xml")) {
                             fileName += ".xml";
                         }
                         
@@ -160,6 +165,16 @@ public class Settings extends PreferenceActivity {
         }
     }
     
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+    
     private String copyToLocalAndGetHash(Uri sourceUri, String destName) throws IOException {
         InputStream in = getContentResolver().openInputStream(sourceUri);
         MessageDigest digester;
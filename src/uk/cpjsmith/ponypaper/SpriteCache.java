@@ -0,0 +1,252 @@
+package uk.cpjsmith.ponypaper;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of decoded {@code SpriteSheet}s, so that ponies rotating
+ * on and off the screen do not decode the same images again and again.
+ * <p>
+ * Sheets in use by an on-screen pony are pinned and are never evicted. Other
+ * sheets are kept until the total size of the cache exceeds its budget, at
+ * which point the least recently used are discarded. All methods are
+ * thread-safe.
+ */
+public class SpriteCache {
+    
+    /**
+     * Identifies the source of a sprite sheet.
+     */
+    public static final class Key {
+        
+        private final Object image;
+        private final Object timings;
+        private final int hash;
+        
+        private Key(Object image, Object timings) {
+            this.image = image;
+            this.timings = timings;
+            this.hash = 31 * image.hashCode() + timings.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return hash == other.hash && image.equals(other.image) && timings.equals(other.timings);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+    }
+    
+    private static class Entry {
+        
+        final SpriteSheet sheet;
+        final int bytes;
+        int pins = 0;
+        
+        Entry(SpriteSheet sheet) {
+            this.sheet = sheet;
+            this.bytes = sheet.bitmap.getRowBytes() * sheet.bitmap.getHeight() + sheet.getMaskBytes();
+        }
+        
+    }
+    
+    private static SpriteCache instance = null;
+    
+    /* Iterates from least to most recently used. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    
+    private long maxBytes;
+    private long totalBytes = 0;
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int evictionCount = 0;
+    
+    private SpriteCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Returns the shared cache. Until {@link #init} is called, its budget is
+     * a quarter of the maximum heap size.
+     * 
+     * @return the process-wide cache
+     */
+    public static synchronized SpriteCache getInstance() {
+        if (instance == null) instance = new SpriteCache(Runtime.getRuntime().maxMemory() / 4);
+        return instance;
+    }
+    
+    /**
+     * Sets the shared cache's budget to a quarter of the device's memory class,
+     * i.e. the heap size each application should aim to stay within.
+     * 
+     * @param context the current application context
+     */
+    public static void init(Context context) {
+        ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        getInstance().setMaxBytes(am.getMemoryClass() * 1024L * 1024L / 4);
+    }
+    
+    /**
+     * Creates the key for a built-in sprite sheet.
+     * 
+     * @param drawId the identifier of the drawable resource
+     * @param slot   the slot of the frame times in {@link BuiltInPonies}
+     * @return the key
+     */
+    public static Key resourceKey(int drawId, int slot) {
+        return new Key(Integer.valueOf(drawId), Integer.valueOf(slot));
+    }
+    
+    /**
+     * Creates the key for a custom sprite sheet. Keys are based on content, so
+     * identical definitions loaded from different places share their sprites.
+     * 
+     * @param image   the base64-encoded image
+     * @param timings the comma-separated frame times
+     * @return the key
+     */
+    public static Key customKey(String image, String timings) {
+        return new Key(image, timings);
+    }
+    
+    /**
+     * Creates the key for a sprite sheet from a pony pack. Images from a pack
+     * file are identified by the file and their place in it, so that making
+     * the key does not read them; other packs are keyed by content.
+     * 
+     * @param pack    the pack containing the image
+     * @param blob    the blob index of the image
+     * @param timings the frame times
+     * @return the key
+     */
+    public static Key packKey(PonyPack pack, int blob, int[] timings) {
+        String source = pack.getBlobSource(blob);
+        return new Key(source != null ? source : pack.getBlob(blob), Arrays.toString(timings));
+    }
+    
+    /**
+     * Changes the cache's budget, evicting sheets if necessary.
+     * 
+     * @param maxBytes the maximum total size of the cached bitmaps, in bytes;
+     *                 pinned sheets are kept even beyond this
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+    
+    /**
+     * Looks up a sheet, pinning it if found. Each successful call must be
+     * matched by a call to {@link #release}.
+     * 
+     * @param key the key of the sheet
+     * @return the sheet, or {@code null} if it is not in the cache
+     */
+    public synchronized SpriteSheet acquire(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        entry.pins++;
+        return entry.sheet;
+    }
+    
+    /**
+     * Adds a newly decoded sheet to the cache and pins it. If another thread
+     * has added a sheet with the same key in the meantime, that one is pinned
+     * and returned instead. The call must be matched by a call to
+     * {@link #release}.
+     * 
+     * @param key   the key of the sheet
+     * @param sheet the sheet
+     * @return the sheet that is now cached under {@code key}
+     */
+    public synchronized SpriteSheet add(Key key, SpriteSheet sheet) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(sheet);
+            entries.put(key, entry);
+            totalBytes += entry.bytes;
+        }
+        entry.pins++;
+        trimToSize(maxBytes);
+        return entry.sheet;
+    }
+    
+    /**
+     * Unpins a sheet, allowing it to be evicted once it is no longer used.
+     * 
+     * @param key the key of the sheet
+     */
+    public synchronized void release(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+            if (entry.pins == 0) trimToSize(maxBytes);
+        }
+    }
+    
+    /**
+     * Evicts unpinned sheets, least recently used first, until the cache's
+     * total size is within the given limit or only pinned sheets remain.
+     * 
+     * @param limit the maximum number of bytes to retain
+     */
+    public synchronized void trimToSize(long limit) {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > limit && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.pins == 0) {
+                it.remove();
+                totalBytes -= entry.bytes;
+                evictionCount++;
+            }
+        }
+    }
+    
+    /** @return the total size of the cached bitmaps, in bytes */
+    public synchronized long size() {
+        return totalBytes;
+    }
+    
+    /** @return the cache's budget, in bytes */
+    public synchronized long maxSize() {
+        return maxBytes;
+    }
+    
+    /** @return the number of calls to {@link #acquire} that found a sheet */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+    
+    /** @return the number of calls to {@link #acquire} that found nothing */
+    public synchronized int missCount() {
+        return missCount;
+    }
+    
+    /** @return the number of sheets evicted to stay within budget */
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "SpriteCache[size=" + totalBytes + ",max=" + maxBytes + ",entries=" + entries.size()
+             + ",hits=" + hitCount + ",misses=" + missCount + ",evictions=" + evictionCount + "]";
+    }
+    
+}
@@ -0,0 +1,376 @@
+package uk.cpjsmith.ponypaper;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A persistent cache of decoded sprite images, and of prepared background
+ * images, stored as raw pixel buffers in the application's cache directory.
+ * Reading a buffer back needs no PNG inflation, so the wallpaper starts
+ * faster after the first run.
+ * <p>
+ * Each file holds a small header followed by the pixels exactly as {@link
+ * Bitmap#copyPixelsToBuffer} wrote them. Files are named after their source
+ * and bitmap config; the whole cache is discarded when the application is
+ * updated. Until {@link #init} is called, the cache stores nothing. All
+ * methods are thread-safe.
+ */
+public class SpriteDiskCache {
+    
+    private static final int MAGIC = 0x506f6e79; // "Pony"
+    private static final int HEADER_SIZE = 16;
+    /* Room for every built-in sprite sheet, about 34 MB decoded, along with
+       those of a few custom ponies. */
+    private static final long MAX_SPRITE_BYTES = 48L * 1024L * 1024L;
+    /* Backgrounds have a budget of their own, so that preparing one never
+       evicts sprites, nor the reverse. */
+    private static final long MAX_BACKGROUND_BYTES = 16L * 1024L * 1024L;
+    private static final String BACKGROUND_PREFIX = "b";
+    
+    private static SpriteDiskCache instance = null;
+    
+    private File dir = null;
+    
+    private int hitCount = 0;
+    private int missCount = 0;
+    private long readNanos = 0;
+    private long decodeNanos = 0;
+    
+    private SpriteDiskCache() {
+    }
+    
+    /**
+     * Returns the shared cache.
+     * 
+     * @return the process-wide cache
+     */
+    public static synchronized SpriteDiskCache getInstance() {
+        if (instance == null) instance = new SpriteDiskCache();
+        return instance;
+    }
+    
+    /**
+     * Enables the shared cache, clearing it if it was written by a different
+     * version of the application.
+     * 
+     * @param context the current application context
+     */
+    public static void init(Context context) {
+        getInstance().open(new File(context.getCacheDir(), "sprites"), getVersionStamp(context));
+    }
+    
+    private static String getVersionStamp(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+    
+    private synchronized void open(File dir, String version) {
+        if (this.dir != null) return;
+        
+        File versionFile = new File(dir, "version");
+        if (!version.equals(readString(versionFile))) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            dir.mkdirs();
+            if (!writeString(versionFile, version)) return;
+        }
+        this.dir = dir;
+    }
+    
+    /**
+     * Creates the cache name for a built-in sprite image. Resources can only
+     * change along with the application, so the identifier is enough.
+     * 
+     * @param drawId the identifier of the drawable resource
+     * @return the name
+     */
+    public static String resourceName(int drawId) {
+        return "r" + Integer.toHexString(drawId);
+    }
+    
+    /**
+     * Creates the cache name for a custom sprite image, from a hash of its
+     * content.
+     * 
+     * @param image the base64-encoded image
+     * @return the name
+     */
+    public static String customName(String image) {
+        try {
+            MessageDigest digester = newDigester();
+            digester.update(image.getBytes("US-ASCII"));
+            return toName("c", digester);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Creates the cache name for an image from a pony pack, from a hash of
+     * its content.
+     * 
+     * @param image the image file, from the buffer's position to its limit
+     * @return the name
+     */
+    public static String packName(ByteBuffer image) {
+        MessageDigest digester = newDigester();
+        digester.update(image.duplicate());
+        return toName("p", digester);
+    }
+    
+    /**
+     * Creates the cache name for a background image prepared for a surface.
+     * 
+     * @param hash       the hash of the source image file
+     * @param pixelation the pixelation the image was prepared with
+     * @param width      the width of the surface
+     * @param height     the height of the surface
+     * @return the name
+     */
+    public static String backgroundName(String hash, int pixelation, int width, int height) {
+        return BACKGROUND_PREFIX + hash + "-" + pixelation + "-" + width + "x" + height;
+    }
+    
+    private static MessageDigest newDigester() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static String toName(String prefix, MessageDigest digester) {
+        StringBuilder result = new StringBuilder(prefix);
+        for (byte b : digester.digest()) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+    
+    /**
+     * Reads a cached image through a memory mapping of its file.
+     * 
+     * @param name   the name of the image
+     * @param config the config the image was decoded with
+     * @return a new bitmap, or {@code null} if the image is not cached
+     */
+    public Bitmap get(String name, Bitmap.Config config) {
+        File file = getFile(name, config);
+        if (file == null) return null;
+        if (!file.exists()) {
+            synchronized (this) {
+                missCount++;
+            }
+            return null;
+        }
+        
+        long start = System.nanoTime();
+        Bitmap bitmap = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() == MAGIC && buffer.getInt() == config.ordinal()) {
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                bitmap = Bitmap.createBitmap(width, height, config);
+                if (buffer.remaining() == bitmap.getByteCount()) {
+                    bitmap.copyPixelsFromBuffer(buffer);
+                } else {
+                    bitmap.recycle();
+                    bitmap = null;
+                }
+            }
+        } catch (IOException e) {
+            android.util.Log.e("PonyPaper", "Error reading cached sprite " + name + ": " + e);
+        } catch (RuntimeException e) {
+            android.util.Log.e("PonyPaper", "Error reading cached sprite " + name + ": " + e);
+            bitmap = null;
+        } finally {
+            closeQuietly(raf);
+        }
+        
+        synchronized (this) {
+            if (bitmap == null) {
+                missCount++;
+                file.delete();
+            } else {
+                hitCount++;
+                readNanos += System.nanoTime() - start;
+                file.setLastModified(System.currentTimeMillis());
+            }
+        }
+        return bitmap;
+    }
+    
+    /**
+     * Stores a newly decoded image, so that later calls to {@link #get} can
+     * find it.
+     * 
+     * @param name        the name of the image
+     * @param bitmap      the decoded image
+     * @param decodeNanos how long decoding the image took, for the statistics
+     */
+    public void put(String name, Bitmap bitmap, long decodeNanos) {
+        synchronized (this) {
+            this.decodeNanos += decodeNanos;
+        }
+        Bitmap.Config config = bitmap.getConfig();
+        if (config == null) return; // Not a format that can be recreated.
+        File file = getFile(name, config);
+        if (file == null) return;
+        
+        File temp = null;
+        FileOutputStream out = null;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(config.ordinal()).putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+            header.flip();
+            ByteBuffer pixels = ByteBuffer.allocateDirect(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(pixels);
+            pixels.flip();
+            
+            // Written under a temporary name, so a half-written file is
+            // never read.
+            temp = File.createTempFile(name, ".tmp", file.getParentFile());
+            out = new FileOutputStream(temp);
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) channel.write(header);
+            while (pixels.hasRemaining()) channel.write(pixels);
+            out.close();
+            out = null;
+            if (temp.renameTo(file)) temp = null;
+        } catch (IOException e) {
+            android.util.Log.e("PonyPaper", "Error caching sprite " + name + ": " + e);
+        } finally {
+            closeQuietly(out);
+            if (temp != null) temp.delete();
+        }
+        trim(name.startsWith(BACKGROUND_PREFIX));
+    }
+    
+    private synchronized File getFile(String name, Bitmap.Config config) {
+        if (dir == null) return null;
+        return new File(dir, name + "-" + config.name());
+    }
+    
+    /**
+     * Deletes the least recently used images of one kind until that kind is
+     * within its size limit.
+     * 
+     * @param backgrounds {@code true} to trim the background images, {@code
+     *                    false} to trim the sprite images
+     */
+    private synchronized void trim(final boolean backgrounds) {
+        if (dir == null) return;
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                return !name.equals("version") && !name.endsWith(".tmp")
+                    && name.startsWith(BACKGROUND_PREFIX) == backgrounds;
+            }
+        });
+        if (files == null) return;
+        
+        long maxBytes = backgrounds ? MAX_BACKGROUND_BYTES : MAX_SPRITE_BYTES;
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= maxBytes) return;
+        
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long tL = lhs.lastModified();
+                long tR = rhs.lastModified();
+                return tL < tR ? -1 : tL > tR ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > maxBytes; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+    
+    private static String readString(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int)file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) break;
+                read += count;
+            }
+            return new String(data, 0, read, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+    
+    private static boolean writeString(File file, String value) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(value.getBytes("UTF-8"));
+            return true;
+        } catch (IOException e) {
+            android.util.Log.e("PonyPaper", "Error creating sprite cache: " + e);
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+    
+    private static void closeQuietly(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // Nothing more can be done.
+        }
+    }
+    
+    /** @return the number of calls to {@link #get} that found an image */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+    
+    /** @return the number of calls to {@link #get} that found nothing */
+    public synchronized int missCount() {
+        return missCount;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "SpriteDiskCache[hits=" + hitCount + ",misses=" + missCount
+             + ",readMs=" + readNanos / 1000000 + ",decodeMs=" + decodeNanos / 1000000 + "]";
+    }
+    
+}
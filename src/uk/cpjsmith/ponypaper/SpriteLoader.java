@@ -0,0 +1,57 @@
+package uk.cpjsmith.ponypaper;
+
+import android.os.Process;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs sprite and background decoding, and the loading of newly enabled
+ * ponies, off the render thread. Tasks are run one at a time, in the order
+ * they were submitted, on a single low-priority thread.
+ */
+public final class SpriteLoader {
+    
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "PonyLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Class is not instantiable.
+     */
+    private SpriteLoader() {
+    }
+    
+    /**
+     * Queues a task to be run in the background.
+     * 
+     * @param task the task to run
+     * @return a {@code Future} which completes when the task has run
+     */
+    public static Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+    
+    /**
+     * Queues a task that produces a result to be run in the background.
+     * 
+     * @param task the task to run
+     * @return a {@code Future} which completes with the task's result
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+    
+}
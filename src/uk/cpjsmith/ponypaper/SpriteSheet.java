@@ -4,10 +4,19 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
+import android.util.Base64;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Encapsulates a linear sequence of images with associated timings. The images
- * are all stored in a single Bitmap.
+ * are all stored in a single Bitmap. Alongside it is a 1-bit mask of which
+ * pixels of each frame are opaque, for hit testing, built once when the image
+ * is decoded and so shared by every pony using the sheet.
  */
 public class SpriteSheet {
     
@@ -16,29 +25,59 @@ public class SpriteSheet {
     public int frameWidth;
     public int frameHeight;
     
+    /* Pixels at least this opaque can be grabbed. */
+    private static final int MASK_ALPHA = 0x80;
+    
     private static BitmapFactory.Options bfOpts;
+    /* The most validation results remembered. */
+    private static final int MAX_VALIDATED = 512;
+    /* The result of each validation, by image source and frame times; an
+       empty string means the image is valid. Least recently used first. */
+    private static final Map<String, String> validated = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_VALIDATED;
+        }
+    };
     
     private int[] frameTimes;
+    /* frameEnds[i] is the time at which frame i stops being displayed. */
+    private int[] frameEnds;
+    /* The common frame duration, or 0 if the frames have differing times. */
+    private int uniformTime;
+    /* Never handed out; getRect() copies from them. */
+    private Rect[] frameRects;
+    /* One bit per pixel, in rows of maskStride longs, frame after frame. */
+    private long[] mask;
+    private int maskStride;
     
     static {
         bfOpts = new BitmapFactory.Options();
         bfOpts.inScaled = false;
+        bfOpts.inPreferredConfig = Bitmap.Config.ARGB_8888;
     }
     
     /**
      * Constructs a new SpriteSheet object from a drawable resource and an
-     * integer array resource. The frame count is extracted from the length of
-     * the frame time array.
+     * array of frame times. The frame count is extracted from the length of
+     * the frame time array. The decoded image is taken from, or added to, the
+     * {@link SpriteDiskCache}.
      * 
-     * @param res     the Resources object to use
-     * @param drawId  the identifier of the drawable resource containing the
-     *                frames
-     * @param timesId the identifier of the integer array resource containing
-     *                the frame times
+     * @param res        the Resources object to use
+     * @param drawId     the identifier of the drawable resource containing
+     *                   the frames
+     * @param frameTimes the integer array containing the frame times
      */
-    public SpriteSheet(Resources res, int drawId, int timesId) {
-        bitmap = BitmapFactory.decodeResource(res, drawId, bfOpts);
-        frameTimes = res.getIntArray(timesId);
+    public SpriteSheet(Resources res, int drawId, int[] frameTimes) {
+        String name = SpriteDiskCache.resourceName(drawId);
+        SpriteDiskCache diskCache = SpriteDiskCache.getInstance();
+        bitmap = diskCache.get(name, bfOpts.inPreferredConfig);
+        if (bitmap == null) {
+            long start = System.nanoTime();
+            bitmap = BitmapFactory.decodeResource(res, drawId, bfOpts);
+            diskCache.put(name, bitmap, System.nanoTime() - start);
+        }
+        this.frameTimes = frameTimes;
         setInternals();
     }
     
@@ -57,29 +96,280 @@ public class SpriteSheet {
     }
     
     /**
-     * Return the boundary of the region of the complete image that should be
-     * displayed at the given time. Requires {@code 0 <= time < totalTime}.
+     * Constructs a new SpriteSheet object from a base64-encoded image file
+     * and an array of frame times. The frame count is extracted from the
+     * length of the frame time array. The decoded image is taken from, or
+     * added to, the {@link SpriteDiskCache}.
+     * 
+     * @param base64Image the image file, encoded in base64
+     * @param frameTimes  the integer array containing the frame times
+     * @throws IllegalArgumentException if {@code base64Image} is not valid
+     *                                  base64
+     */
+    public SpriteSheet(String base64Image, int[] frameTimes) {
+        String name = SpriteDiskCache.customName(base64Image);
+        SpriteDiskCache diskCache = SpriteDiskCache.getInstance();
+        this.bitmap = diskCache.get(name, bfOpts.inPreferredConfig);
+        if (this.bitmap == null) {
+            long start = System.nanoTime();
+            byte[] bitmapData = Base64.decode(base64Image, 0);
+            this.bitmap = BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length, bfOpts);
+            if (this.bitmap != null) diskCache.put(name, this.bitmap, System.nanoTime() - start);
+        }
+        this.frameTimes = frameTimes;
+        setInternals();
+    }
+    
+    /**
+     * Constructs a new SpriteSheet object from an image file in a buffer, such
+     * as one mapped from a pony pack, and an array of frame times. The frame
+     * count is extracted from the length of the frame time array. The decoded
+     * image is taken from, or added to, the {@link SpriteDiskCache}.
+     * 
+     * @param imageData  the image file, from the buffer's position to its
+     *                   limit
+     * @param frameTimes the integer array containing the frame times
+     */
+    public SpriteSheet(ByteBuffer imageData, int[] frameTimes) {
+        String name = SpriteDiskCache.packName(imageData);
+        SpriteDiskCache diskCache = SpriteDiskCache.getInstance();
+        this.bitmap = diskCache.get(name, bfOpts.inPreferredConfig);
+        if (this.bitmap == null) {
+            long start = System.nanoTime();
+            byte[] bitmapData = new byte[imageData.remaining()];
+            imageData.duplicate().get(bitmapData);
+            this.bitmap = BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length, bfOpts);
+            if (this.bitmap != null) diskCache.put(name, this.bitmap, System.nanoTime() - start);
+        }
+        this.frameTimes = frameTimes;
+        setInternals();
+    }
+    
+    /**
+     * Checks that a base64-encoded image file can be made into a sprite sheet
+     * with the given frame times. Only the image's header is decoded, but the
+     * whole image must be decoded from base64 first, so this is only for
+     * definitions that could not be compiled into a {@link PonyPack}.
+     * 
+     * @param base64Image the image file, encoded in base64
+     * @param frameTimes  the frame times
+     * @throws IllegalArgumentException if the image is invalid
+     */
+    public static void validate(String base64Image, int[] frameTimes) {
+        String error = checkTimes(frameTimes);
+        if (error.isEmpty()) {
+            try {
+                byte[] bitmapData = Base64.decode(base64Image, 0);
+                error = checkImage(new ByteArrayInputStream(bitmapData), frameTimes);
+            } catch (IllegalArgumentException e) {
+                error = "Invalid base64 image.";
+            }
+        }
+        if (!error.isEmpty()) throw new IllegalArgumentException(error);
+    }
+    
+    /**
+     * Checks that an image file in a buffer can be made into a sprite sheet
+     * with the given frame times. Only the image's header is read.
+     * 
+     * @param imageData  the image file, from the buffer's position to its
+     *                   limit
+     * @param frameTimes the frame times
+     * @param source     identifies the image, as {@link
+     *                   PonyPack#getBlobSource} does, so that the result can
+     *                   be remembered; or {@code null}
+     * @throws IllegalArgumentException if the image is invalid
+     */
+    public static void validate(ByteBuffer imageData, int[] frameTimes, String source) {
+        String key = source != null ? source + Arrays.toString(frameTimes) : null;
+        String error = key != null ? getValidation(key) : null;
+        if (error == null) {
+            error = checkTimes(frameTimes);
+            if (error.isEmpty()) error = checkImage(new BufferInputStream(imageData.duplicate()), frameTimes);
+            if (key != null) setValidation(key, error);
+        }
+        if (!error.isEmpty()) throw new IllegalArgumentException(error);
+    }
+    
+    private static synchronized String getValidation(String key) {
+        return validated.get(key);
+    }
+    
+    private static synchronized void setValidation(String key, String error) {
+        validated.put(key, error);
+    }
+    
+    /* Returns a description of the problem, or an empty string. */
+    private static String checkTimes(int[] frameTimes) {
+        if (frameTimes.length == 0) return "No frame times.";
+        for (int i = 0; i < frameTimes.length; i++) {
+            if (frameTimes[i] <= 0) return "Frame times must be positive.";
+        }
+        return "";
+    }
+    
+    /* Returns a description of the problem, or an empty string. */
+    private static String checkImage(InputStream in, int[] frameTimes) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(in, null, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) return "Unrecognised image format.";
+        if (opts.outWidth % frameTimes.length != 0) {
+            return "Image width " + opts.outWidth + " cannot be split into " + frameTimes.length + " frames.";
+        }
+        return "";
+    }
+    
+    /**
+     * Returns the number of frames in the animation.
+     * 
+     * @return the frame count
+     */
+    public int getFrameCount() {
+        return frameTimes.length;
+    }
+    
+    /**
+     * Returns the index of the frame that should be displayed at the given
+     * time. Requires {@code 0 <= time < totalTime}. Two calls returning the
+     * same index will display identical images, so callers can use this to
+     * detect when nothing has changed.
      * 
      * @param time the number of 10-millisecond intervals since the start of
      *             the animation
-     * @return the rectangle to use as the {@code src} parameter to
-     *         {@code android.graphics.canvas.drawBitmap()}
+     * @return the frame index, in the range {@code 0 <= index <
+     *         getFrameCount()}
      * @throws IllegalArgumentException if {@code time} is invalid
      */
-    public Rect getRect(int time) {
-        if (time < 0) throw new IllegalArgumentException("Invalid frame time.");
-        for (int frame = 0; frame < frameTimes.length; frame++) {
-            if (time < frameTimes[frame]) return new Rect(frameWidth * frame, 0, frameWidth * (frame + 1), frameHeight);
-            time -= frameTimes[frame];
+    public int getFrameIndex(int time) {
+        if (time < 0 || time >= totalTime) throw new IllegalArgumentException("Invalid frame time.");
+        if (uniformTime > 0) return time / uniformTime;
+        
+        // Binary search for the first frame ending after the given time.
+        int low = 0;
+        int high = frameEnds.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (frameEnds[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        throw new IllegalArgumentException("Invalid frame time.");
+        return low;
+    }
+    
+    /**
+     * Determines whether a pixel of a frame is opaque enough to be grabbed,
+     * using the precomputed mask rather than reading the bitmap.
+     * 
+     * @param frame the index of the frame
+     * @param x     the x-coordinate within the frame
+     * @param y     the y-coordinate within the frame
+     * @return {@code true} iff the pixel is within the frame and at least
+     *         half opaque
+     * @throws ArrayIndexOutOfBoundsException if {@code frame} is invalid
+     */
+    public boolean isOpaqueAt(int frame, int x, int y) {
+        if (x < 0 || y < 0 || x >= frameWidth || y >= frameHeight) return false;
+        return (mask[(frame * frameHeight + y) * maskStride + (x >>> 6)] & (1L << (x & 63))) != 0;
+    }
+    
+    /**
+     * Returns the memory used by the hit testing mask.
+     * 
+     * @return the size of the mask in bytes
+     */
+    public int getMaskBytes() {
+        return mask.length * 8;
+    }
+    
+    /**
+     * Finds the boundary of the region of the complete image that should be
+     * displayed at the given time. Requires {@code 0 <= time < totalTime}.
+     * 
+     * @param time the number of 10-millisecond intervals since the start of
+     *             the animation
+     * @param out  set to the rectangle to use as the {@code src} parameter to
+     *             {@code android.graphics.canvas.drawBitmap()}
+     * @throws IllegalArgumentException if {@code time} is invalid
+     */
+    public void getRect(int time, Rect out) {
+        out.set(frameRects[getFrameIndex(time)]);
     }
     
     private void setInternals() {
+        final int frameCount = frameTimes.length;
+        
+        frameEnds = new int[frameCount];
         totalTime = 0;
-        for (int x : frameTimes) totalTime += x;
-        frameWidth = bitmap.getWidth() / frameTimes.length;
+        uniformTime = frameTimes[0];
+        for (int i = 0; i < frameCount; i++) {
+            totalTime += frameTimes[i];
+            frameEnds[i] = totalTime;
+            if (frameTimes[i] != uniformTime) uniformTime = 0;
+        }
+        
+        frameWidth = bitmap.getWidth() / frameCount;
         frameHeight = bitmap.getHeight();
+        
+        frameRects = new Rect[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frameRects[i] = new Rect(frameWidth * i, 0, frameWidth * (i + 1), frameHeight);
+        }
+        
+        buildMask();
+    }
+    
+    private void buildMask() {
+        final int frameCount = frameTimes.length;
+        final int width = bitmap.getWidth();
+        
+        maskStride = (frameWidth + 63) >>> 6;
+        mask = new long[frameCount * frameHeight * maskStride];
+        int[] row = new int[width];
+        for (int y = 0; y < frameHeight; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int frame = 0; frame < frameCount; frame++) {
+                int offset = (frame * frameHeight + y) * maskStride;
+                for (int x = 0; x < frameWidth; x++) {
+                    if (row[frame * frameWidth + x] >>> 24 >= MASK_ALPHA) mask[offset + (x >>> 6)] |= 1L << (x & 63);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads a buffer as a stream, so that decoding an image's bounds reads
+     * only as much of a mapped pack as the header needs.
+     */
+    private static class BufferInputStream extends InputStream {
+        
+        private final ByteBuffer buffer;
+        
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+        
     }
     
 }
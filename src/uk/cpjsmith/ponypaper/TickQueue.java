@@ -0,0 +1,149 @@
+package uk.cpjsmith.ponypaper;
+
+/**
+ * A priority queue of items, each due at a tick, for waking ponies only when
+ * something is due to happen to them. Items are numbered from 0 to the
+ * capacity, and each is in the queue at most once; scheduling an item again
+ * moves it. The queue is a binary heap in arrays, with the position of each
+ * item kept so that it can be moved or removed in logarithmic time, and
+ * nothing is allocated after construction.
+ * <p>
+ * Ticks are compared by their difference, so the tick counter may wrap
+ * around as long as no item is due more than 2^31 ticks from another.
+ */
+public class TickQueue {
+    
+    private static final int NONE = -1;
+    
+    private final int[] heapItem;
+    private final int[] heapTick;
+    /* The position of each item in the heap, or NONE. */
+    private final int[] position;
+    private int count = 0;
+    
+    /**
+     * Creates an empty queue.
+     * 
+     * @param capacity the number of items, which are numbered from 0
+     */
+    public TickQueue(int capacity) {
+        heapItem = new int[capacity];
+        heapTick = new int[capacity];
+        position = new int[capacity];
+        clear();
+    }
+    
+    /**
+     * Removes every item from the queue.
+     */
+    public void clear() {
+        for (int i = 0; i < position.length; i++) {
+            position[i] = NONE;
+        }
+        count = 0;
+    }
+    
+    /**
+     * Determines whether any items are in the queue.
+     * 
+     * @return {@code true} iff the queue is empty
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+    
+    /**
+     * Returns the tick at which the earliest item is due. Requires the queue
+     * not to be empty.
+     * 
+     * @return the earliest tick
+     */
+    public int peekTick() {
+        return heapTick[0];
+    }
+    
+    /**
+     * Removes the earliest item from the queue. Requires the queue not to be
+     * empty.
+     * 
+     * @return the item
+     */
+    public int poll() {
+        int item = heapItem[0];
+        removeAt(0);
+        return item;
+    }
+    
+    /**
+     * Schedules an item for a tick, replacing any tick it was already
+     * scheduled for.
+     * 
+     * @param item the item
+     * @param tick the tick at which it is due
+     */
+    public void schedule(int item, int tick) {
+        int p = position[item];
+        if (p == NONE) {
+            p = count++;
+            heapItem[p] = item;
+            position[item] = p;
+        }
+        heapTick[p] = tick;
+        siftDown(siftUp(p));
+    }
+    
+    /**
+     * Removes an item from the queue, if it is there.
+     * 
+     * @param item the item
+     */
+    public void cancel(int item) {
+        int p = position[item];
+        if (p != NONE) removeAt(p);
+    }
+    
+    private void removeAt(int p) {
+        position[heapItem[p]] = NONE;
+        count--;
+        if (p == count) return;
+        heapItem[p] = heapItem[count];
+        heapTick[p] = heapTick[count];
+        position[heapItem[p]] = p;
+        siftDown(siftUp(p));
+    }
+    
+    private int siftUp(int p) {
+        while (p > 0) {
+            int parent = (p - 1) >>> 1;
+            if (heapTick[parent] - heapTick[p] <= 0) break;
+            swap(p, parent);
+            p = parent;
+        }
+        return p;
+    }
+    
+    private void siftDown(int p) {
+        while (true) {
+            int least = p;
+            int left = 2 * p + 1;
+            int right = left + 1;
+            if (left < count && heapTick[left] - heapTick[least] < 0) least = left;
+            if (right < count && heapTick[right] - heapTick[least] < 0) least = right;
+            if (least == p) return;
+            swap(p, least);
+            p = least;
+        }
+    }
+    
+    private void swap(int a, int b) {
+        int item = heapItem[a];
+        int tick = heapTick[a];
+        heapItem[a] = heapItem[b];
+        heapTick[a] = heapTick[b];
+        heapItem[b] = item;
+        heapTick[b] = tick;
+        position[heapItem[a]] = a;
+        position[heapItem[b]] = b;
+    }
+    
+}
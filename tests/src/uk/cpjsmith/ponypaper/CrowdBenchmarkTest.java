@@ -0,0 +1,95 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Rect;
+import android.test.AndroidTestCase;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how the cost of updating a {@link PonyCrowd} grows with its size.
+ * For each size, a crowd of every built-in pony is warmed up, then updated
+ * for several runs of frames, and the median time taken per frame is logged.
+ * Only the update is timed; drawing depends too much on the device to
+ * compare.
+ * <p>
+ * Timings vary too much from run to run, with garbage collection, the JIT and
+ * thermal throttling, to be asserted on. What is asserted instead is the
+ * number of times ponies are woken, on which the cost of an update mostly
+ * depends: per pony and per tick, it must not grow with the size of the crowd.
+ */
+public class CrowdBenchmarkTest extends AndroidTestCase {
+    
+    private static final int[] SIZES = {100, 250, 500, 1000};
+    private static final int WARM_UP_FRAMES = 600;
+    private static final int FRAMES = 600;
+    private static final int RUNS = 5;
+    /* Roughly a frame at 60 frames per second. */
+    private static final int TICKS_PER_FRAME = 2;
+    
+    /* The wakeups per pony per tick measured for each size. */
+    private final double[] wakeRates = new double[SIZES.length];
+    
+    /**
+     * Checks that each pony is woken no more often in a large crowd than in a
+     * small one, allowing for the randomness of their behaviour, and far less
+     * often than every tick: most of the time, most ponies need nothing done.
+     */
+    public void testWakeupsScaleWithSize() {
+        List<Pony> species = new ArrayList<Pony>();
+        for (String key : BuiltInPonies.KEYS) {
+            species.addAll(AllPonies.makePonies(getContext(), key));
+        }
+        Rect bounds = new Rect(0, 0, 1080, 1920);
+        
+        for (int s = 0; s < SIZES.length; s++) {
+            long nanos = measure(species, bounds, s);
+            android.util.Log.i("PonyPaper", "Crowd of " + SIZES[s] + " updated in " + nanos / 1000
+                                          + " us per frame (median of " + RUNS + " runs); "
+                                          + String.format(Locale.US, "%.4f", wakeRates[s])
+                                          + " wakeups per pony per tick");
+        }
+        
+        int last = SIZES.length - 1;
+        assertTrue("Wakeups per pony grow with crowd size", wakeRates[last] <= 1.25 * wakeRates[0]);
+        for (int s = 0; s < SIZES.length; s++) {
+            assertTrue("Ponies in a crowd of " + SIZES[s] + " are woken too often", wakeRates[s] < 0.05);
+        }
+    }
+    
+    /**
+     * Times the updates of a crowd, and counts its wakeups.
+     * 
+     * @param species the ponies to make the crowd from
+     * @param bounds  the bounds of the screen
+     * @param s       the index of the crowd's size in {@link #SIZES}
+     * @return the median nanoseconds per frame
+     */
+    private long measure(List<Pony> species, Rect bounds, int s) {
+        PonyCrowd crowd = new PonyCrowd(species, SIZES[s]);
+        try {
+            for (int f = 0; f < WARM_UP_FRAMES; f++) {
+                crowd.update(bounds, TICKS_PER_FRAME, 0);
+            }
+            
+            int wakes = crowd.wakeCount();
+            long[] nanos = new long[RUNS];
+            for (int r = 0; r < RUNS; r++) {
+                long start = System.nanoTime();
+                for (int f = 0; f < FRAMES; f++) {
+                    crowd.update(bounds, TICKS_PER_FRAME, 0);
+                }
+                nanos[r] = (System.nanoTime() - start) / FRAMES;
+            }
+            wakes = crowd.wakeCount() - wakes;
+            wakeRates[s] = (double)wakes / ((double)SIZES[s] * RUNS * FRAMES * TICKS_PER_FRAME);
+            
+            Arrays.sort(nanos);
+            return nanos[RUNS / 2];
+        } finally {
+            crowd.release();
+        }
+    }
+    
+}
@@ -0,0 +1,83 @@
+package uk.cpjsmith.ponypaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks that the steady-state frame loop of {@link Ponies} allocates no
+ * objects. The test thread stands in for the render thread, and the objects
+ * it allocates are counted one frame at a time.
+ * <p>
+ * A frame that queues sprites to be loaded legitimately allocates, so it is
+ * not counted. Such a frame is recognised after the loader has finished:
+ * every load looks its sprites up in the {@link SpriteCache}, and every new
+ * pony on screen has been loaded.
+ */
+public class FrameAllocationTest extends AndroidTestCase {
+    
+    /* The number of steady-state frames to count. */
+    private static final int FRAMES = 10000;
+    private static final int MAX_FRAMES = 100000;
+    private static final int TICKS_PER_FRAME = 4;
+    
+    private Ponies ponies;
+    private Bitmap bitmap;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ponies = new Ponies(getContext(), TestPreferences.builtInOnly(getContext(), "frame-allocation-test", 4));
+        bitmap = Bitmap.createBitmap(480, 800, Bitmap.Config.ARGB_8888);
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        ponies.release();
+        bitmap.recycle();
+        super.tearDown();
+    }
+    
+    public void testSteadyStateFramesAllocateNothing() throws Exception {
+        Canvas c = new Canvas(bitmap);
+        Rect bounds = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        SpriteCache cache = SpriteCache.getInstance();
+        
+        int counted = 0;
+        int allocated = 0;
+        for (int f = 0; f < MAX_FRAMES && counted < FRAMES; f++) {
+            waitForLoader();
+            int lookups = cache.hitCount() + cache.missCount();
+            int swaps = ponies.swapCount();
+            
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            ponies.drawAndUpdate(c, bounds, TICKS_PER_FRAME, 0);
+            Debug.stopAllocCounting();
+            int count = Debug.getThreadAllocCount();
+            
+            waitForLoader();
+            if (lookups == cache.hitCount() + cache.missCount() && swaps == ponies.swapCount()) {
+                counted++;
+                allocated += count;
+            }
+        }
+        
+        assertTrue("Only " + counted + " steady-state frames were run", counted >= FRAMES);
+        assertEquals("Objects allocated in " + counted + " steady-state frames", 0, allocated);
+    }
+    
+    /**
+     * Waits for every task queued on the loader so far to finish.
+     */
+    private static void waitForLoader() throws InterruptedException, ExecutionException {
+        SpriteLoader.submit(new Runnable() {
+            public void run() {
+            }
+        }).get();
+    }
+    
+}
@@ -0,0 +1,121 @@
+package uk.cpjsmith.ponypaper;
+
+import android.os.Handler;
+import android.os.Looper;
+import junit.framework.TestCase;
+
+/**
+ * Checks the pacing of {@link FrameScheduler} by feeding it synthetic vsync
+ * timestamps from a 60 Hz display, as {@code Choreographer} would.
+ * <p>
+ * The scheduler's handler is bound to a looper that is never run, so only
+ * the synthetic pulses produce frames.
+ */
+public class FrameSchedulerTest extends TestCase {
+    
+    /* 60 Hz, rounded up so that three pulses span at least 50 ms. */
+    private static final long VSYNC_NANOS = 16666667L;
+    private static final long NANOS_PER_TICK = 10000000L;
+    private static final int SECONDS = 10;
+    
+    private Handler handler;
+    private long now;
+    private int frames;
+    private long ticks;
+    private int lastTicks;
+    
+    private final FrameScheduler.Clock clock = new FrameScheduler.Clock() {
+        public long nanoTime() {
+            return now;
+        }
+    };
+    
+    private final FrameScheduler.Callback callback = new FrameScheduler.Callback() {
+        public void onFrame(int ticks, float interpolation) {
+            frames++;
+            FrameSchedulerTest.this.ticks += ticks;
+            lastTicks = ticks;
+        }
+    };
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) Looper.prepare();
+        handler = new Handler();
+    }
+    
+    public void testFifteenFramesPerSecond() {
+        checkRate(15);
+    }
+    
+    public void testTwentyFiveFramesPerSecond() {
+        checkRate(25);
+    }
+    
+    public void testThirtyFramesPerSecond() {
+        checkRate(30);
+    }
+    
+    public void testSixtyFramesPerSecond() {
+        checkRate(60);
+    }
+    
+    /**
+     * Checks that a gap longer than 250 ms, such as while the wallpaper is
+     * hidden, is played back as 25 ticks rather than in full.
+     */
+    public void testLongGapIsClamped() {
+        FrameScheduler scheduler = start(25);
+        try {
+            assertTrue(scheduler.onVsync(now));
+            now += 3 * 1000000000L;
+            assertTrue(scheduler.onVsync(now));
+            assertEquals(25, lastTicks);
+            
+            // Pacing resumes from the late frame rather than catching up.
+            now += VSYNC_NANOS;
+            assertFalse(scheduler.onVsync(now));
+            now += 2 * VSYNC_NANOS;
+            assertTrue(scheduler.onVsync(now));
+            assertEquals(5, lastTicks);
+        } finally {
+            scheduler.stop();
+        }
+    }
+    
+    /**
+     * Runs a scheduler against the display for {@link #SECONDS} and checks
+     * the number of frames drawn and ticks reported.
+     * 
+     * @param rate the target frame rate
+     */
+    private void checkRate(int rate) {
+        FrameScheduler scheduler = start(rate);
+        try {
+            long first = now;
+            long last = now;
+            for (long pulse = 0; pulse <= SECONDS * 60; pulse++) {
+                now = first + pulse * VSYNC_NANOS;
+                if (scheduler.onVsync(now)) last = now;
+            }
+            
+            int expected = rate * SECONDS + 1;
+            assertTrue(frames + " frames at " + rate + " fps", Math.abs(frames - expected) <= 1);
+            assertEquals("Ticks at " + rate + " fps", (last - first) / NANOS_PER_TICK, ticks);
+        } finally {
+            scheduler.stop();
+        }
+    }
+    
+    private FrameScheduler start(int rate) {
+        now = 123456789L;
+        frames = 0;
+        ticks = 0;
+        FrameScheduler scheduler = new FrameScheduler(handler, clock, callback, false);
+        scheduler.setTargetRate(rate);
+        scheduler.start();
+        return scheduler;
+    }
+    
+}
@@ -0,0 +1,103 @@
+package uk.cpjsmith.ponypaper;
+
+import android.content.SharedPreferences;
+import android.graphics.Rect;
+import android.test.AndroidTestCase;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Measures the startup and pony-swap times of {@link Ponies} with the {@link
+ * SpriteDiskCache} empty, so every sprite is decoded, and then with every
+ * built-in sprite already in it. The times are logged; only the cache's
+ * behaviour is asserted, since timings vary too much between runs.
+ */
+public class LoadTimeTest extends AndroidTestCase {
+    
+    /* The number of ponies to bring on screen after the first ones. */
+    private static final int SWAPS = 5;
+    private static final int MAX_FRAMES = 1000000;
+    /* Updates are cheap, so time is run fast for the ponies to move on. */
+    private static final int TICKS_PER_FRAME = 10;
+    
+    private SpriteDiskCache diskCache;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SpriteDiskCache.init(getContext());
+        diskCache = SpriteDiskCache.getInstance();
+    }
+    
+    public void testLoadTimes() throws Exception {
+        clearDiskCache();
+        run("Empty disk cache");
+        
+        cacheEveryBuiltInSprite();
+        int misses = diskCache.missCount();
+        run("Full disk cache");
+        assertEquals("Sprites missing from a full disk cache", misses, diskCache.missCount());
+    }
+    
+    /**
+     * Starts a set of ponies from nothing in memory, then updates them until
+     * {@link #SWAPS} more have come on screen, and logs how long loading
+     * took.
+     * 
+     * @param label describes the run in the log
+     */
+    private void run(String label) throws Exception {
+        SpriteCache.getInstance().trimToSize(0);
+        SharedPreferences prefs = TestPreferences.builtInOnly(getContext(), "load-time-test", 4);
+        Rect bounds = new Rect(0, 0, 1080, 1920);
+        
+        Ponies ponies = new Ponies(getContext(), prefs);
+        try {
+            for (int f = 0; f < MAX_FRAMES && ponies.swapCount() < SWAPS; f++) {
+                ponies.update(bounds, TICKS_PER_FRAME, 0);
+            }
+            assertTrue("Only " + ponies.swapCount() + " ponies came on screen", ponies.swapCount() >= SWAPS);
+            android.util.Log.i("PonyPaper", label + ": started in " + ponies.startupMillis() + " ms; "
+                                          + ponies.swapCount() + " swaps in " + ponies.swapMillis() + " ms; "
+                                          + diskCache);
+        } finally {
+            ponies.release();
+            waitForLoader();
+        }
+    }
+    
+    private void clearDiskCache() {
+        File[] files = new File(getContext().getCacheDir(), "sprites").listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (!file.getName().equals("version")) file.delete();
+        }
+    }
+    
+    /**
+     * Loads, and so writes to the disk cache, every sprite of every built-in
+     * pony. Together they must fit within the cache's budget.
+     */
+    private void cacheEveryBuiltInSprite() {
+        for (String key : BuiltInPonies.KEYS) {
+            for (Pony pony : AllPonies.makePonies(getContext(), key)) {
+                for (PonyAction action : pony.getActions()) {
+                    action.load();
+                }
+                pony.reset();
+            }
+        }
+        SpriteCache.getInstance().trimToSize(0);
+    }
+    
+    /**
+     * Waits for every task queued on the loader so far to finish.
+     */
+    private static void waitForLoader() throws InterruptedException, ExecutionException {
+        SpriteLoader.submit(new Runnable() {
+            public void run() {
+            }
+        }).get();
+    }
+    
+}
@@ -0,0 +1,47 @@
+package uk.cpjsmith.ponypaper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.io.File;
+
+/**
+ * Makes preferences for tests which fix the roster of ponies to the built-in
+ * ones, whatever custom pony files the device happens to hold.
+ */
+final class TestPreferences {
+    
+    /**
+     * Class is not instantiable.
+     */
+    private TestPreferences() {
+    }
+    
+    /**
+     * Replaces a set of private preferences with ones that enable every
+     * built-in pony and no custom ones, outside of crowd mode.
+     * 
+     * @param context the target application's context
+     * @param name    the name of the preferences
+     * @param count   the number of ponies to have on screen
+     * @return the preferences
+     */
+    static SharedPreferences builtInOnly(Context context, String name, int count) {
+        SharedPreferences prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit().clear();
+        for (String key : BuiltInPonies.KEYS) {
+            editor.putBoolean(key, true);
+        }
+        File dir = context.getExternalFilesDir(null);
+        String[] custom = dir == null ? null : dir.list(AllPonies.customFilter);
+        if (custom != null) {
+            for (String file : custom) {
+                editor.putBoolean("pref_custom_" + file, false);
+            }
+        }
+        editor.putInt("pref_num_ponies", count);
+        editor.putString("pref_crowd_size", "0");
+        editor.commit();
+        return prefs;
+    }
+    
+}
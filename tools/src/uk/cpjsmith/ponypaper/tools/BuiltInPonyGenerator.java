@@ -0,0 +1,227 @@
+package uk.cpjsmith.ponypaper.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Generates the table of built-in ponies, {@code BuiltInPonies.java}, from
+ * the roster in {@code tools/ponies.xml} and the action arrays in {@code
+ * res/values}. Run by the {@code -pre-build} target in {@code
+ * custom_rules.xml}.
+ * <p>
+ * Usage: {@code BuiltInPonyGenerator PONIES_XML VALUES_DIR OUTPUT_DIR}
+ */
+public class BuiltInPonyGenerator {
+    
+    private static final String[] DIRECTIONS = {"left", "right"};
+    private static final String[] NEXT_TYPES = {"waiting", "moving", "drag"};
+    
+    /* The four items of each action array, by array name. */
+    private final Map<String, String[]> actionArrays = new HashMap<String, String[]>();
+    /* The frame times of each integer array, by array name. */
+    private final Map<String, List<Integer>> timeArrays = new HashMap<String, List<Integer>>();
+    
+    private final List<String> keys = new ArrayList<String>();
+    private final List<Integer> firstAction = new ArrayList<Integer>();
+    private final List<Integer> firstStart = new ArrayList<Integer>();
+    private final List<Integer> start = new ArrayList<Integer>();
+    private final List<String> type = new ArrayList<String>();
+    private final List<String> drawable = new ArrayList<String>();
+    private final List<Integer> firstFrame = new ArrayList<Integer>();
+    private final List<Integer> frameTimes = new ArrayList<Integer>();
+    private final List<Integer> firstNext = new ArrayList<Integer>();
+    private final List<Integer> next = new ArrayList<Integer>();
+    
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: BuiltInPonyGenerator PONIES_XML VALUES_DIR OUTPUT_DIR");
+            System.exit(2);
+        }
+        try {
+            BuiltInPonyGenerator generator = new BuiltInPonyGenerator();
+            DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            File[] valueFiles = new File(args[1]).listFiles();
+            if (valueFiles == null) throw new IOException("Cannot list " + args[1]);
+            for (File file : valueFiles) {
+                if (file.getName().endsWith(".xml")) generator.readValues(docBuilder.parse(file));
+            }
+            generator.readRoster(docBuilder.parse(new File(args[0])));
+            
+            File outDir = new File(args[2], "uk/cpjsmith/ponypaper");
+            outDir.mkdirs();
+            PrintWriter out = new PrintWriter(new File(outDir, "BuiltInPonies.java"), "UTF-8");
+            try {
+                generator.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            System.err.println("Error generating built-in ponies: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    private void readValues(Document doc) {
+        NodeList arrays = doc.getElementsByTagName("array");
+        for (int i = 0; i < arrays.getLength(); i++) {
+            Element array = (Element)arrays.item(i);
+            NodeList items = array.getElementsByTagName("item");
+            if (items.getLength() != 4) continue;
+            String[] values = new String[4];
+            for (int j = 0; j < 4; j++) {
+                values[j] = items.item(j).getTextContent().trim();
+            }
+            actionArrays.put(array.getAttribute("name"), values);
+        }
+        
+        NodeList intArrays = doc.getElementsByTagName("integer-array");
+        for (int i = 0; i < intArrays.getLength(); i++) {
+            Element array = (Element)intArrays.item(i);
+            NodeList items = array.getElementsByTagName("item");
+            List<Integer> values = new ArrayList<Integer>();
+            for (int j = 0; j < items.getLength(); j++) {
+                values.add(Integer.valueOf(items.item(j).getTextContent().trim()));
+            }
+            timeArrays.put(array.getAttribute("name"), values);
+        }
+    }
+    
+    private void readRoster(Document doc) throws IOException {
+        NodeList ponies = doc.getElementsByTagName("pony");
+        for (int p = 0; p < ponies.getLength(); p++) {
+            Element pony = (Element)ponies.item(p);
+            String key = pony.getAttribute("key");
+            keys.add(key);
+            
+            NodeList actions = pony.getElementsByTagName("action");
+            Map<String, Integer> indices = new HashMap<String, Integer>();
+            for (int i = 0; i < actions.getLength(); i++) {
+                String name = ((Element)actions.item(i)).getAttribute("array");
+                if (indices.put(name, type.size() + i) != null) throw new IOException("Action " + name + " repeated in " + key + ".");
+            }
+            
+            firstAction.add(type.size());
+            for (int i = 0; i < actions.getLength(); i++) {
+                Element action = (Element)actions.item(i);
+                String name = action.getAttribute("array");
+                String[] items = actionArrays.get(name);
+                if (items == null) throw new IOException("No action array " + name + ".");
+                
+                String specialType = action.getAttribute("type");
+                if (specialType.equals("")) {
+                    type.add("PonyAction.NORMAL");
+                } else if (specialType.equals("teleport-out")) {
+                    type.add("PonyAction.PORT_O");
+                } else if (specialType.equals("teleport-in")) {
+                    type.add("PonyAction.PORT_I");
+                } else {
+                    throw new IOException("Unknown type " + specialType + " for " + name + ".");
+                }
+                
+                for (int dir = 0; dir < DIRECTIONS.length; dir++) {
+                    drawable.add("R.drawable." + stripPrefix(items[2 * dir], "@drawable/"));
+                    String timesName = stripPrefix(items[2 * dir + 1], "@array/");
+                    List<Integer> times = timeArrays.get(timesName);
+                    if (times == null || times.isEmpty()) throw new IOException("No frame times " + timesName + ".");
+                    firstFrame.add(frameTimes.size());
+                    frameTimes.addAll(times);
+                }
+                
+                for (String nextType : NEXT_TYPES) {
+                    firstNext.add(next.size());
+                    addActions(next, indices, action.getAttribute(nextType), key);
+                }
+            }
+            
+            firstStart.add(start.size());
+            addActions(start, indices, pony.getAttribute("start"), key);
+        }
+        firstAction.add(type.size());
+        firstStart.add(start.size());
+        firstFrame.add(frameTimes.size());
+        firstNext.add(next.size());
+    }
+    
+    private static String stripPrefix(String value, String prefix) throws IOException {
+        if (!value.startsWith(prefix)) throw new IOException("Expected " + prefix + " but found " + value + ".");
+        return value.substring(prefix.length());
+    }
+    
+    private static void addActions(List<Integer> list, Map<String, Integer> indices, String names, String key) throws IOException {
+        for (String name : names.split(",")) {
+            Integer index = indices.get(name);
+            if (index == null) throw new IOException("Action " + name + " not defined in " + key + ".");
+            list.add(index);
+        }
+    }
+    
+    private void write(PrintWriter out) {
+        out.println("// Generated by tools/BuiltInPonyGenerator from tools/ponies.xml and");
+        out.println("// res/values. Do not edit.");
+        out.println("package uk.cpjsmith.ponypaper;");
+        out.println();
+        out.println("/**");
+        out.println(" * The built-in ponies, as flat tables. Actions are numbered across all the");
+        out.println(" * ponies; a slot is {@code 2 * action + direction}, and a transition list is");
+        out.println(" * {@code 3 * action + t}, where t is 0, 1 or 2 for waiting, moving or drag.");
+        out.println(" * Each FIRST_ table has one more entry than there are ponies, actions, slots");
+        out.println(" * or lists, so that entry {@code i + 1} ends range {@code i}.");
+        out.println(" */");
+        out.println("final class BuiltInPonies {");
+        out.println("    ");
+        out.println("    /** The preference which enables each pony, in roster order. */");
+        out.println("    static final String[] KEYS = {");
+        for (int i = 0; i < keys.size(); i++) {
+            out.println("        \"" + keys.get(i) + "\"" + (i + 1 < keys.size() ? "," : ""));
+        }
+        out.println("    };");
+        writeTable(out, "FIRST_ACTION", "The first action of each pony.", firstAction);
+        writeTable(out, "FIRST_START", "The first entry in START of each pony.", firstStart);
+        writeTable(out, "START", "The start actions of each pony.", start);
+        writeStrings(out, "TYPE", "The type of each action.", type);
+        writeStrings(out, "DRAWABLE", "The drawable resource of each slot.", drawable);
+        writeTable(out, "FIRST_FRAME", "The first entry in FRAME_TIMES of each slot.", firstFrame);
+        writeTable(out, "FRAME_TIMES", "The frame times of every slot.", frameTimes);
+        writeTable(out, "FIRST_NEXT", "The first entry in NEXT of each transition list.", firstNext);
+        writeTable(out, "NEXT", "The actions in every transition list.", next);
+        out.println("    ");
+        out.println("    private BuiltInPonies() {");
+        out.println("    }");
+        out.println("    ");
+        out.println("}");
+    }
+    
+    private static void writeTable(PrintWriter out, String name, String doc, List<Integer> values) {
+        List<String> strings = new ArrayList<String>();
+        for (Integer value : values) strings.add(value.toString());
+        writeStrings(out, name, doc, strings);
+    }
+    
+    private static void writeStrings(PrintWriter out, String name, String doc, List<String> values) {
+        out.println("    ");
+        out.println("    /** " + doc + " */");
+        out.println("    static final int[] " + name + " = {");
+        StringBuilder line = new StringBuilder("       ");
+        for (int i = 0; i < values.size(); i++) {
+            String item = " " + values.get(i) + (i + 1 < values.size() ? "," : "");
+            if (line.length() + item.length() > 100) {
+                out.println(line);
+                line = new StringBuilder("       ");
+            }
+            line.append(item);
+        }
+        out.println(line);
+        out.println("    };");
+    }
+    
+}